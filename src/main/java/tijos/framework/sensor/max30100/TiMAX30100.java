@@ -3,7 +3,6 @@
 package tijos.framework.sensor.max30100;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
 import tijos.framework.devicecenter.TiI2CMaster;
 import tijos.framework.util.BigBitConverter;
 
@@ -12,56 +11,6 @@ import tijos.framework.util.BigBitConverter;
  * https://github.com/oxullo/Arduino-MAX30100
  */
 
-class TiMAX30100Regsiters {
-
-	// Interrupt status register (RO)
-	public static final int MAX30100_REG_INTERRUPT_STATUS = 0x00;
-
-	public static final int MAX30100_IS_PWR_RDY = (1 << 0);
-	public static final int MAX30100_IS_SPO2_RDY = (1 << 4);
-	public static final int MAX30100_IS_HR_RDY = (1 << 5);
-	public static final int MAX30100_IS_TEMP_RDY = (1 << 6);
-	public static final int MAX30100_IS_A_FULL = (1 << 7);
-
-	// Interrupt enable register
-	public static final int MAX30100_REG_INTERRUPT_ENABLE = 0x01;
-	public static final int MAX30100_IE_ENB_SPO2_RDY = (1 << 4);
-	public static final int MAX30100_IE_ENB_HR_RDY = (1 << 5);
-	public static final int MAX30100_IE_ENB_TEMP_RDY = (1 << 6);
-	public static final int MAX30100_IE_ENB_A_FULL = (1 << 7);
-
-	// FIFO control and data registers
-	public static final int MAX30100_REG_FIFO_WRITE_POINTER = 0x02;
-	public static final int MAX30100_REG_FIFO_OVERFLOW_COUNTER = 0x03;
-	public static final int MAX30100_REG_FIFO_READ_POINTER = 0x04;
-	
-	// Burst read does not auto increment addr
-	public static final int MAX30100_REG_FIFO_DATA = 0x05; 
-
-	// Mode Configuration register
-	public static final int MAX30100_REG_MODE_CONFIGURATION = 0x06;
-
-	// SpO2 Configuration register
-	// Check tables 8 and 9, p19 of the MAX30100 datasheet to see the
-	// permissible
-	// combinations of sampling rates and pulse widths
-	public static final int MAX30100_REG_SPO2_CONFIGURATION = 0x07;
-
-	// LED Configuration register
-	public static final int MAX30100_REG_LED_CONFIGURATION = 0x09;
-
-	// Temperature integer part register
-	public static final int MAX30100_REG_TEMPERATURE_DATA_INT = 0x16;
-	// Temperature fractional part register
-	public static final int MAX30100_REG_TEMPERATURE_DATA_FRAC = 0x17;
-
-	// Revision ID register (RO)
-	public static final int MAX30100_REG_REVISION_ID = 0xfe;
-	// Part ID register
-	public static final int MAX30100_REG_PART_ID = 0xff;
-
-}
-
 /**
  * MAX30100 oximetry / heart rate integrated sensor
  * 
@@ -106,6 +55,10 @@ public class TiMAX30100 {
 	public static final int MAX30100_LED_CURR_46_8MA = 0x0e;
 	public static final int MAX30100_LED_CURR_50MA = 0x0f;
 
+	// nominal mA of each LED current setting
+	private static final double[] LED_CURR_MA = new double[] { 0, 4.4, 7.6, 11, 14.2, 17.4, 20.8, 24, 27.1, 30.6,
+			33.8, 37, 40.2, 43.6, 46.8, 50 };
+
 	/**
 	 * LED Pulse width
 	 */
@@ -114,6 +67,8 @@ public class TiMAX30100 {
 	public static final int MAX30100_SPC_PW_800US_15BITS = 0x02;
 	public static final int MAX30100_SPC_PW_1600US_16BITS = 0x03;
 
+	private static final int[] PULSE_WIDTH_US = new int[] { 200, 400, 800, 1600 };
+
 	/**
 	 * Sampling Rate
 	 */
@@ -126,6 +81,9 @@ public class TiMAX30100 {
 	public static final int MAX30100_SAMPRATE_800HZ = 0x06;
 	public static final int MAX30100_SAMPRATE_1000HZ = 0x07;
 
+	// samples per second of each sampling rate setting
+	private static final int[] SAMPRATE_HZ = new int[] { 50, 100, 167, 200, 400, 600, 800, 1000 };
+
 	/**
 	 * Mode configuration
 	 */
@@ -138,14 +96,33 @@ public class TiMAX30100 {
 	 */
 	public static final int MAX30100_SPC_SPO2_HI_RES_EN = (1 << 6);
 
+	/**
+	 * Interrupt status / enable bits
+	 */
+	public static final int MAX30100_INT_PWR_RDY = TiMAX30100Regsiters.MAX30100_IS_PWR_RDY;
+	public static final int MAX30100_INT_SPO2_RDY = TiMAX30100Regsiters.MAX30100_IS_SPO2_RDY;
+	public static final int MAX30100_INT_HR_RDY = TiMAX30100Regsiters.MAX30100_IS_HR_RDY;
+	public static final int MAX30100_INT_TEMP_RDY = TiMAX30100Regsiters.MAX30100_IS_TEMP_RDY;
+	public static final int MAX30100_INT_A_FULL = TiMAX30100Regsiters.MAX30100_IS_A_FULL;
+
 	public static final int MAX30100_FIFO_DEPTH = 0x10;
 	
 	public static final int  EXPECTED_PART_ID   = 0x11;
 
-	private TiI2CMaster i2cmObj;
+	/**
+	 * Default capacity of the sample buffer in IR/Red pairs
+	 */
+	public static final int DEFAULT_SAMPLE_BUFFER_CAPACITY = MAX30100_FIFO_DEPTH * 4;
+
+	/**
+	 * Wait in ms before reading a background temperature conversion, 29ms
+	 * typical
+	 */
+	public static final int TEMPERATURE_CONVERSION_MS = 35;
+
+	private TiMAX30100_I2CBus i2cmObj;
 
-	private ArrayDeque<Integer> rawIRQueue = new ArrayDeque<Integer>();
-	private ArrayDeque<Integer> rawRedQueue = new ArrayDeque<Integer>();
+	private TiMAX30100_SampleBuffer sampleBuffer;
 
 	private byte[] buffer = new byte[MAX30100_FIFO_DEPTH * 4];
 
@@ -156,6 +133,49 @@ public class TiMAX30100 {
 
 	private byte[] data = new byte[4];
 
+	private TiMAX30100_InterruptSource interruptSource;
+
+	// power-on default is 50Hz
+	private int samplingRate = MAX30100_SAMPRATE_50HZ;
+
+	// FIFO overflow accounting
+	private long overflowCount = 0;
+	private long lostSampleCount = 0;
+	private int lastLostSamples = 0;
+
+	// samples lost after the current FIFO content, reported on the first
+	// sample drained once samplesBeforeGap samples have been delivered
+	private int pendingGap = 0;
+	private int samplesBeforeGap = 0;
+
+	private TiMAX30100_Metrics metrics;
+
+	private TiMAX30100_FifoTap fifoTap;
+
+	// sensor time, advanced by the drained and lost samples. Volatile like
+	// the temperature reading: a thread other than the draining one may
+	// read them, and a plain long or double may be torn on a 32-bit VM
+	private volatile long sensorTimeUs = 0;
+
+	// background temperature conversions, in sensor time. The temperature
+	// is written before its time, which publishes it.
+	private volatile long temperatureIntervalMs = 0;
+	private long temperatureStartUs = -1;
+	private volatile long temperatureTimeUs = -1;
+	private volatile double temperature = Double.NaN;
+
+	private TiMAX30100_PollScheduler pollScheduler = new TiMAX30100_PollScheduler(SAMPRATE_HZ[samplingRate]);
+
+	/**
+	 * Shadow copies of the writable configuration registers, loaded by
+	 * refreshFromDevice and updated on every write. Self-clearing bits
+	 * (TEMP_EN, RESET) are never kept.
+	 */
+	private int modeConfig = 0;
+	private int spo2Config = 0;
+	private int ledConfig = 0;
+	private int interruptEnable = 0;
+
 	/**
 	 * Initialize with default I2C address 0xAE
 	 * 
@@ -172,8 +192,50 @@ public class TiMAX30100 {
 	 * @param address
 	 */
 	public TiMAX30100(TiI2CMaster i2c, int address) {
-		this.i2cmObj = i2c;
+		this(i2c, address, DEFAULT_SAMPLE_BUFFER_CAPACITY, TiMAX30100_SampleBuffer.OVERFLOW_DROP_OLDEST);
+	}
+
+	/**
+	 * Initialize with I2C, Slave address and sample buffer settings
+	 * 
+	 * @param i2c
+	 * @param address
+	 * @param bufferCapacity
+	 *            maximum number of IR/Red pairs kept between update and get
+	 * @param overflowPolicy
+	 *            TiMAX30100_SampleBuffer.OVERFLOW_DROP_OLDEST,
+	 *            OVERFLOW_DROP_NEWEST or OVERFLOW_THROW
+	 */
+	public TiMAX30100(TiI2CMaster i2c, int address, int bufferCapacity, int overflowPolicy) {
+		this(new TiMAX30100_I2CMasterBus(i2c), address, bufferCapacity, overflowPolicy);
+	}
+
+	/**
+	 * Initialize with an I2C bus implementation, such as
+	 * TiMAX30100_Simulator, and default Slave address
+	 * 
+	 * @param bus
+	 */
+	public TiMAX30100(TiMAX30100_I2CBus bus) {
+		this(bus, MAX30100_SLAVE_ADDRESS, DEFAULT_SAMPLE_BUFFER_CAPACITY, TiMAX30100_SampleBuffer.OVERFLOW_DROP_OLDEST);
+	}
+
+	/**
+	 * Initialize with an I2C bus implementation, Slave address and sample
+	 * buffer settings
+	 * 
+	 * @param bus
+	 * @param address
+	 * @param bufferCapacity
+	 *            maximum number of IR/Red pairs kept between update and get
+	 * @param overflowPolicy
+	 *            TiMAX30100_SampleBuffer.OVERFLOW_DROP_OLDEST,
+	 *            OVERFLOW_DROP_NEWEST or OVERFLOW_THROW
+	 */
+	public TiMAX30100(TiMAX30100_I2CBus bus, int address, int bufferCapacity, int overflowPolicy) {
+		this.i2cmObj = bus;
 		this.i2cSlaveAddr = address;
+		this.sampleBuffer = new TiMAX30100_SampleBuffer(bufferCapacity, overflowPolicy);
 	}
 
 	/**
@@ -190,12 +252,14 @@ public class TiMAX30100 {
 		if (partId != EXPECTED_PART_ID) {
 		    throw new IOException("partId is not expected. " + partId);
 		}
+
+		refreshFromDevice();
 		
 		setMode(MAX30100_MODE_HRONLY);
-		setLedsPulseWidth(MAX30100_SPC_PW_1600US_16BITS);
-		setSamplingRate(MAX30100_SAMPRATE_100HZ);
+		// pulse width, sampling rate and high resolution share one register
+		writeSpO2Configuration((spo2Config & 0x80) | MAX30100_SPC_SPO2_HI_RES_EN | (MAX30100_SAMPRATE_100HZ << 2)
+				| MAX30100_SPC_PW_1600US_16BITS);
 		setLedsCurrent(MAX30100_LED_CURR_50MA, MAX30100_LED_CURR_50MA);
-		setHighresModeEnabled(true);
 	}
 
 	/**
@@ -214,7 +278,7 @@ public class TiMAX30100 {
 	 * @return
 	 */
 	public int getIR() {
-		return this.rawIRQueue.pop();
+		return this.sampleBuffer.popIR();
 	}
 
 	/**
@@ -223,7 +287,14 @@ public class TiMAX30100 {
 	 * @return
 	 */
 	public int getRed() {
-		return this.rawRedQueue.pop();
+		return this.sampleBuffer.popRed();
+	}
+
+	/**
+	 * I2C bus the sensor is attached to
+	 */
+	TiMAX30100_I2CBus getBus() {
+		return i2cmObj;
 	}
 
 	/**
@@ -235,8 +306,16 @@ public class TiMAX30100 {
 	 */
 	public void setMode(int mode) throws IOException {
 
-		data[0] = (byte) mode;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
+		writeModeConfiguration(mode & 0xFF);
+	}
+
+	/**
+	 * Current mode
+	 * 
+	 * @return MAX30100_MODE_HRONLY or MAX30100_MODE_SPO2_HR
+	 */
+	public int getMode() {
+		return modeConfig & 0x07;
 	}
 
 	/**
@@ -247,31 +326,211 @@ public class TiMAX30100 {
 	 */
 	public void setLedsPulseWidth(int ledPulseWidth) throws IOException {
 
-		this.i2cmObj.read(this.i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
-		int previous = data[0] & 0xFF;
-
-		int width = (previous & 0xfc) | ledPulseWidth;
+		writeSpO2Configuration((spo2Config & 0xfc) | ledPulseWidth);
+	}
 
-		data[0] = (byte) width;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
+	/**
+	 * Current LED pulse width
+	 * 
+	 * @return MAX30100_SPC_PW_xxx
+	 */
+	public int getLedsPulseWidth() {
+		return spo2Config & 0x03;
 	}
 
 	/**
 	 * SpO2 Sample Rate Control
 	 * 
 	 * @param samplingRate
+	 *            MAX30100_SAMPRATE_xxx
 	 * @throws IOException
 	 */
 	public void setSamplingRate(int samplingRate) throws IOException {
+		checkSamplingRate(samplingRate);
+
+		writeSpO2Configuration((spo2Config & 0xe3) | (samplingRate << 2));
+	}
 
-		this.i2cmObj.read(this.i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
-		int previous = data[0] & 0xFF;
+	/**
+	 * Current sampling rate setting
+	 * 
+	 * @return MAX30100_SAMPRATE_xxx
+	 */
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * Samples per second of a sampling rate setting
+	 * 
+	 * @param samplingRate
+	 *            MAX30100_SAMPRATE_xxx
+	 * @return sample rate in Hz
+	 */
+	public static int getSamplingRateHz(int samplingRate) {
+		checkSamplingRate(samplingRate);
+		return SAMPRATE_HZ[samplingRate];
+	}
 
-		int rate = (previous & 0xe3) | (samplingRate << 2);
+	/**
+	 * Duration of each LED pulse for a pulse width setting
+	 * 
+	 * @param pulseWidth
+	 *            MAX30100_SPC_PW_xxx
+	 * @return pulse width in us
+	 */
+	public static int getLedsPulseWidthUs(int pulseWidth) {
+		if (pulseWidth < MAX30100_SPC_PW_200US_13BITS || pulseWidth > MAX30100_SPC_PW_1600US_16BITS) {
+			throw new IllegalArgumentException("pulse width " + pulseWidth);
+		}
 
-		data[0] = (byte) rate;
+		return PULSE_WIDTH_US[pulseWidth];
+	}
 
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
+	static void checkSamplingRate(int samplingRate) {
+		if (samplingRate < MAX30100_SAMPRATE_50HZ || samplingRate > MAX30100_SAMPRATE_1000HZ) {
+			throw new IllegalArgumentException("sampling rate " + samplingRate);
+		}
+	}
+
+	/**
+	 * Nominal current of a LED current setting
+	 * 
+	 * @param ledCurrent
+	 *            MAX30100_LED_CURR_xxx
+	 * @return current in mA
+	 */
+	public static double getLedCurrentMa(int ledCurrent) {
+		return LED_CURR_MA[ledCurrent];
+	}
+
+	/**
+	 * Recommended interval between two update calls, derived from the
+	 * sampling rate so that the FIFO is about three-quarters full, shortened
+	 * after overflows and lengthened while the drains stay below that fill
+	 * 
+	 * @return interval in ms
+	 */
+	public long pollIntervalHint() {
+		return pollScheduler.getIntervalMs();
+	}
+
+	/**
+	 * Enable the hot path instrumentation
+	 * 
+	 * @param metrics
+	 *            instance receiving the figures, null to disable
+	 */
+	public void setMetrics(TiMAX30100_Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public TiMAX30100_Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Observe the raw FIFO words and overflows, e.g. to record them
+	 * 
+	 * @param tap
+	 *            observer, null to remove
+	 */
+	public void setFifoTap(TiMAX30100_FifoTap tap) {
+		this.fifoTap = tap;
+	}
+
+	/**
+	 * Number of drains which found the FIFO overflowed
+	 * 
+	 * @return
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * Total number of samples lost by FIFO overflows
+	 * 
+	 * @return
+	 */
+	public long getLostSampleCount() {
+		return lostSampleCount;
+	}
+
+	/**
+	 * Number of samples lost by a FIFO overflow reported by the last drain
+	 * 
+	 * @return
+	 */
+	public int getLastLostSamples() {
+		return lastLostSamples;
+	}
+
+	/**
+	 * Total number of samples dropped because the sample buffer was full
+	 * 
+	 * @return
+	 */
+	public long getBufferDroppedCount() {
+		return sampleBuffer.getDroppedCount();
+	}
+
+	/**
+	 * Number of samples expected in the FIFO, estimated from the time elapsed
+	 * since the last drain without any bus access
+	 * 
+	 * @return 0 to MAX30100_FIFO_DEPTH
+	 */
+	public int estimateFifoLevel() {
+		return pollScheduler.getExpectedSamples();
+	}
+
+	/**
+	 * Time in ms before the FIFO is expected to hold the given number of
+	 * samples
+	 * 
+	 * @param samples
+	 * @return
+	 */
+	public long getDelayForSamples(int samples) {
+		return pollScheduler.getDelayForSamples(samples);
+	}
+
+	/**
+	 * Drain the FIFO until at least minCount samples are pending, sleeping
+	 * between reads instead of polling the I2C bus
+	 * 
+	 * @param minCount
+	 *            minimum number of pending samples
+	 * @param timeoutMs
+	 *            maximum time to wait in ms
+	 * @return number of samples pending, may be less than minCount on timeout
+	 * @throws IOException
+	 */
+	public int awaitSamples(int minCount, long timeoutMs) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+
+		int pending = readFifoData();
+		while (pending < minCount) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+
+			int missing = Math.min(minCount - pending, MAX30100_FIFO_DEPTH);
+			long delay = Math.min(pollScheduler.getDelayForSamples(missing), pollScheduler.getIntervalMs());
+			delay = Math.min(Math.max(delay, 1), remaining);
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			pending = readFifoData();
+		}
+
+		return pending;
 	}
 
 	/**
@@ -285,8 +544,26 @@ public class TiMAX30100 {
 	 */
 	public void setLedsCurrent(int irLedCurrent, int redLedCurrent) throws IOException {
 
-		data[0] = (byte) (redLedCurrent << 4 | irLedCurrent);
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_LED_CONFIGURATION, data, 0, 1);
+		ledConfig = (redLedCurrent << 4 | irLedCurrent) & 0xFF;
+		writeRegister(TiMAX30100Regsiters.MAX30100_REG_LED_CONFIGURATION, ledConfig);
+	}
+
+	/**
+	 * Current IR LED current level
+	 * 
+	 * @return MAX30100_LED_CURR_xxx
+	 */
+	public int getIRLedCurrent() {
+		return ledConfig & 0x0f;
+	}
+
+	/**
+	 * Current Red LED current level
+	 * 
+	 * @return MAX30100_LED_CURR_xxx
+	 */
+	public int getRedLedCurrent() {
+		return (ledConfig >> 4) & 0x0f;
 	}
 
 	/**
@@ -297,18 +574,18 @@ public class TiMAX30100 {
 	 */
 	public void setHighresModeEnabled(boolean enabled) throws IOException {
 
-		this.i2cmObj.read(this.i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
-		int previous = data[0] & 0xFF;
-
 		int newValue = 0;
 		if (enabled) {
-			newValue = previous | MAX30100_SPC_SPO2_HI_RES_EN;
+			newValue = spo2Config | MAX30100_SPC_SPO2_HI_RES_EN;
 		} else {
-			newValue = previous & ~MAX30100_SPC_SPO2_HI_RES_EN;
+			newValue = spo2Config & ~MAX30100_SPC_SPO2_HI_RES_EN;
 		}
 
-		data[0] = (byte) newValue;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, data, 0, 1);
+		writeSpO2Configuration(newValue);
+	}
+
+	public boolean isHighresModeEnabled() {
+		return (spo2Config & MAX30100_SPC_SPO2_HI_RES_EN) != 0;
 	}
 
 	/**
@@ -321,28 +598,24 @@ public class TiMAX30100 {
 	 */
 	public void startTemperatureSampling() throws IOException {
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
-		int modeConfig = data[0] & 0xFF;
-
-		modeConfig |= MAX30100_MC_TEMP_EN;
-
-		data[0] = (byte) modeConfig;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
+		// TEMP_EN is self-clearing, keep it out of the shadow register
+		writeRegister(TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, modeConfig | MAX30100_MC_TEMP_EN);
 	}
 
 	/**
-	 * is temperature data ready
+	 * is temperature data ready, TEMP_EN has been cleared by the end of the
+	 * conversion
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public boolean isTemperatureReady() throws IOException {
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
+		busRead(TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
 		if (((data[0] & 0xFF) & MAX30100_MC_TEMP_EN) > 0)
-			return true;
+			return false;
 
-		return false;
+		return true;
 	}
 
 	/**
@@ -358,13 +631,60 @@ public class TiMAX30100 {
 	 */
 	public double retrieveTemperature() throws IOException {
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_INT, data, 0, 1);
-		int tempInteger = data[0] & 0xFF;
+		// integer and fraction registers are contiguous
+		busRead(TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_INT, data, 0, 2);
+		int tempInteger = data[0];
+		int tempFrac = data[1] & 0x0F;
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_FRAC, data, 0, 1);
-		int tempFrac = data[0] & 0xFF;
+		temperature = tempFrac * 0.0625 + tempInteger;
+		temperatureTimeUs = sensorTimeUs;
 
-		return tempFrac * 0.0625 + tempInteger;
+		return temperature;
+	}
+
+	/**
+	 * Run temperature conversions in the background, a conversion is started
+	 * on a FIFO drain and read on a later drain once complete. The time is
+	 * the sensor time given by the drained samples, no conversion runs while
+	 * the FIFO is not drained.
+	 * 
+	 * @param intervalMs
+	 *            time between two conversions, 0 to stop
+	 */
+	public void setTemperatureInterval(long intervalMs) {
+		if (intervalMs < 0) {
+			throw new IllegalArgumentException("temperature interval " + intervalMs);
+		}
+
+		this.temperatureIntervalMs = intervalMs;
+	}
+
+	public long getTemperatureInterval() {
+		return temperatureIntervalMs;
+	}
+
+	/**
+	 * Last temperature read by retrieveTemperature or in the background
+	 * 
+	 * @return degree Celsius, NaN if none
+	 */
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/**
+	 * Sensor time since the last temperature reading
+	 * 
+	 * @return ms, -1 if none
+	 */
+	public long getTemperatureAge() {
+		// read before the sensor time, which only moves forward
+		long time = temperatureTimeUs;
+		if (time < 0) {
+			return -1;
+		}
+
+		return (sensorTimeUs - time) / 1000;
 	}
 
 	/**
@@ -377,14 +697,7 @@ public class TiMAX30100 {
 	 */
 	public void shutdown() throws IOException {
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
-		int modeConfig = data[0] & 0xFF;
-
-		modeConfig |= MAX30100_MC_SHDN;
-
-		data[0] = (byte) modeConfig;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
-
+		writeModeConfiguration(modeConfig | MAX30100_MC_SHDN);
 	}
 
 	/**
@@ -393,13 +706,16 @@ public class TiMAX30100 {
 	 */
 	public void resume() throws IOException {
 
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
-		int modeConfig = data[0] & 0xFF;
-
-		modeConfig &= ~MAX30100_MC_SHDN;
+		writeModeConfiguration(modeConfig & ~MAX30100_MC_SHDN);
+	}
 
-		data[0] = (byte) modeConfig;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 1);
+	/**
+	 * is the device in power-save mode
+	 * 
+	 * @return
+	 */
+	public boolean isShutdown() {
+		return (modeConfig & MAX30100_MC_SHDN) != 0;
 	}
 
 	/**
@@ -409,52 +725,428 @@ public class TiMAX30100 {
 	 * @throws IOException
 	 */
 	public int getPartId() throws IOException {
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_PART_ID, data, 0, 1);
+		busRead(TiMAX30100Regsiters.MAX30100_REG_PART_ID, data, 0, 1);
 		return data[0] & 0xFF;
 	}
 
+	/**
+	 * Apply a complete configuration with as few I2C transactions as possible.
+	 * The device is put in power-save mode while the registers are written so
+	 * that no sample is taken under a mixed configuration, then the FIFO and
+	 * the sample buffer are cleared and the previous power state is restored.
+	 * 
+	 * @param config
+	 * @throws IOException
+	 */
+	public void apply(TiMAX30100_SensorConfig config) throws IOException {
+		boolean wasShutdown = isShutdown();
+
+		writeModeConfiguration(config.getModeConfiguration() | MAX30100_MC_SHDN);
+
+		if (config.getSpO2Configuration() != (spo2Config & 0x7f)) {
+			writeSpO2Configuration((spo2Config & 0x80) | config.getSpO2Configuration());
+		}
+
+		if (config.getLedConfiguration() != ledConfig) {
+			ledConfig = config.getLedConfiguration();
+			writeRegister(TiMAX30100Regsiters.MAX30100_REG_LED_CONFIGURATION, ledConfig);
+		}
+
+		resetFifo();
+
+		if (!wasShutdown) {
+			writeModeConfiguration(config.getModeConfiguration());
+		}
+	}
+
+	/**
+	 * Reload the shadow copies of the configuration registers from the device,
+	 * only needed if the registers may have been changed by another master or
+	 * by a power cycle
+	 * 
+	 * @throws IOException
+	 */
+	public void refreshFromDevice() throws IOException {
+		busRead(TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_ENABLE, data, 0, 1);
+		interruptEnable = data[0] & 0xFF;
+
+		// mode, SpO2, reserved and LED configuration are contiguous
+		busRead(TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, data, 0, 4);
+		modeConfig = data[0] & 0xFF & ~(MAX30100_MC_TEMP_EN | MAX30100_MC_RESET);
+		spo2Config = data[1] & 0xFF;
+		ledConfig = data[3] & 0xFF;
+
+		updateSamplingRate();
+	}
+
 	/**
 	 * Reset FIFO
 	 * 
 	 * @throws IOException
 	 */
 	public void resetFifo() throws IOException {
+		// write pointer, overflow counter and read pointer are contiguous
 		data[0] = 0;
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER, data, 0, 1);
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_FIFO_READ_POINTER, data, 0, 1);
-		this.i2cmObj.write(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_FIFO_OVERFLOW_COUNTER, data, 0, 1);
+		data[1] = 0;
+		data[2] = 0;
+		busWrite(TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER, data, 0, 3);
+
+		// drained samples not yet read are as stale as the FIFO content
+		sampleBuffer.clear();
+		pendingGap = 0;
+		samplesBeforeGap = 0;
 
 	}
 
-	private int readFifoData() throws IOException {
-		
-		this.i2cmObj.read(i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER, data, 0, 3);
+	/**
+	 * Interrupt Enable Control
+	 * 
+	 * @param mask
+	 *            combination of MAX30100_INT_A_FULL, MAX30100_INT_TEMP_RDY,
+	 *            MAX30100_INT_HR_RDY and MAX30100_INT_SPO2_RDY, 0 to disable
+	 * @throws IOException
+	 */
+	public void setInterruptsEnabled(int mask) throws IOException {
+
+		interruptEnable = mask & (TiMAX30100Regsiters.MAX30100_IE_ENB_A_FULL
+				| TiMAX30100Regsiters.MAX30100_IE_ENB_TEMP_RDY | TiMAX30100Regsiters.MAX30100_IE_ENB_HR_RDY
+				| TiMAX30100Regsiters.MAX30100_IE_ENB_SPO2_RDY);
+		writeRegister(TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_ENABLE, interruptEnable);
+	}
+
+	/**
+	 * Currently enabled interrupts
+	 * 
+	 * @return combination of MAX30100_INT_xxx bits
+	 */
+	public int getInterruptsEnabled() {
+		return interruptEnable;
+	}
+
+	/**
+	 * Read the interrupt status, reading clears all pending interrupts and
+	 * releases the INT pin
+	 * 
+	 * @return combination of MAX30100_INT_xxx bits
+	 * @throws IOException
+	 */
+	public int getInterruptStatus() throws IOException {
+		busRead(TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS, data, 0, 1);
+		return data[0] & 0xFF;
+	}
+
+	/**
+	 * Set the source of the INT pin events used by updateOnInterrupt
+	 * 
+	 * @param source
+	 */
+	public void setInterruptSource(TiMAX30100_InterruptSource source) {
+		this.interruptSource = source;
+	}
+
+	/**
+	 * Wait for the INT pin and check whether the FIFO has data to drain. <br>
+	 * On timeout the status register is still checked once so an edge missed
+	 * while the pin was already asserted does not stall the acquisition.
+	 * 
+	 * @param timeoutMs
+	 *            maximum time to wait in ms, 0 to wait forever
+	 * @return true if the FIFO should be drained
+	 * @throws IOException
+	 */
+	public boolean waitForFifoInterrupt(long timeoutMs) throws IOException {
+		if (this.interruptSource == null) {
+			throw new IOException("interrupt source is not set");
+		}
+
+		this.interruptSource.waitForInterrupt(timeoutMs);
+
+		int status = getInterruptStatus();
+		return (status & (MAX30100_INT_A_FULL | MAX30100_INT_SPO2_RDY | MAX30100_INT_HR_RDY)) != 0;
+	}
+
+	/**
+	 * Get sample values of FIFO DATA only when the sensor signals through the
+	 * interrupt source, see setInterruptsEnabled and setInterruptSource
+	 * 
+	 * @param timeoutMs
+	 *            maximum time to wait in ms, 0 to wait forever
+	 * @return number of samples pending
+	 * @throws IOException
+	 */
+	public int updateOnInterrupt(long timeoutMs) throws IOException {
+		if (waitForFifoInterrupt(timeoutMs)) {
+			return readFifoData();
+		}
+
+		return sampleBuffer.size();
+	}
+
+	/**
+	 * Copy all pending samples fetched by update into the caller's arrays
+	 * 
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param off
+	 *            first index to write in both arrays
+	 * @param max
+	 *            maximum number of samples to copy
+	 * @return number of samples copied
+	 */
+	public int readSamples(int[] ir, int[] red, int off, int max) {
+		return this.sampleBuffer.read(ir, red, off, max);
+	}
+
+	/**
+	 * Copy all pending samples fetched by update into the caller's arrays,
+	 * with the number of samples lost just before each sample, either by a
+	 * FIFO overflow or by the sample buffer
+	 * 
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param lost
+	 *            destination of the number of samples lost before each sample
+	 * @param off
+	 *            first index to write in the arrays
+	 * @param max
+	 *            maximum number of samples to copy
+	 * @return number of samples copied
+	 */
+	public int readSamples(int[] ir, int[] red, int[] lost, int off, int max) {
+		return this.sampleBuffer.read(ir, red, lost, off, max);
+	}
+
+	/**
+	 * Copy pending samples and then decode the FIFO DATA straight into the
+	 * caller's arrays without going through the sample buffer. Samples which
+	 * do not fit are left in the FIFO for the next call.
+	 * 
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param off
+	 *            first index to write in both arrays
+	 * @param max
+	 *            maximum number of samples to copy
+	 * @return number of samples copied
+	 * @throws IOException
+	 */
+	public int readFifoSamples(int[] ir, int[] red, int off, int max) throws IOException {
+		return readFifoSamples(ir, red, null, off, max);
+	}
+
+	/**
+	 * Same as readFifoSamples(ir, red, off, max), with the number of samples
+	 * lost just before each sample
+	 * 
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param lost
+	 *            destination of the number of samples lost before each
+	 *            sample, may be null
+	 * @param off
+	 *            first index to write in the arrays
+	 * @param max
+	 *            maximum number of samples to copy
+	 * @return number of samples copied
+	 * @throws IOException
+	 */
+	public int readFifoSamples(int[] ir, int[] red, int[] lost, int off, int max) throws IOException {
+		int count = this.sampleBuffer.read(ir, red, lost, off, max);
+		if (count >= max) {
+			return count;
+		}
+
+		long start = metrics != null ? System.nanoTime() : 0;
+
+		int toRead = Math.min(getFifoSampleCount(), max - count);
+		if (toRead > 0) {
+			busRead(TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA, buffer, 0, 4 * toRead);
+			if (fifoTap != null) {
+				fifoTap.onSamples(buffer, 0, toRead);
+			}
+
+			off += count;
+			for (int i = 0; i < toRead; i++) {
+				// Warning: the values are always left-aligned
+				ir[off + i] = BigBitConverter.ToUInt16(buffer, i * 4);
+				red[off + i] = BigBitConverter.ToUInt16(buffer, i * 4 + 2);
+
+				int gap = nextGap();
+				if (lost != null) {
+					lost[off + i] = gap;
+				}
+			}
+		}
+
+		advanceSensorTime(toRead);
+		serviceTemperature();
+
+		if (metrics != null) {
+			metrics.readFifoMicros.record((System.nanoTime() - start) / 1000);
+		}
+
+		return count + toRead;
+	}
+
+	private void writeModeConfiguration(int value) throws IOException {
+		modeConfig = value & 0xFF;
+		writeRegister(TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION, modeConfig);
+	}
+
+	private void writeSpO2Configuration(int value) throws IOException {
+		spo2Config = value & 0xFF;
+		writeRegister(TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION, spo2Config);
+		updateSamplingRate();
+	}
+
+	private void updateSamplingRate() {
+		int rate = (spo2Config >> 2) & 0x07;
+		if (rate != samplingRate) {
+			samplingRate = rate;
+			pollScheduler.setSampleRate(SAMPRATE_HZ[rate]);
+		}
+	}
+
+	private void writeRegister(int register, int value) throws IOException {
+		data[0] = (byte) value;
+		busWrite(register, data, 0, 1);
+	}
+
+	private void busRead(int register, byte[] buf, int off, int len) throws IOException {
+		this.i2cmObj.read(i2cSlaveAddr, register, buf, off, len);
+
+		if (metrics != null) {
+			metrics.i2cTransactions++;
+			metrics.i2cBytes += len;
+		}
+	}
+
+	private void busWrite(int register, byte[] buf, int off, int len) throws IOException {
+		this.i2cmObj.write(i2cSlaveAddr, register, buf, off, len);
+
+		if (metrics != null) {
+			metrics.i2cTransactions++;
+			metrics.i2cBytes += len;
+		}
+	}
+
+	/**
+	 * Number of samples available in the FIFO
+	 */
+	private int getFifoSampleCount() throws IOException {
+
+		busRead(TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER, data, 0, 3);
 		int writePointer = data[0] & 0xFF;
 		int overflow = data[1] & 0xFF;
 		int readPointer = data[2] & 0xFF;
 		int toRead = (writePointer - readPointer) & (MAX30100_FIFO_DEPTH - 1);
-		
+
 		//if overflow, read max depth data 
 		if(overflow > 0)
 		{
 			toRead = MAX30100_FIFO_DEPTH;
 		}
+
+		this.pollScheduler.onDrain(toRead, overflow > 0);
+
+		// the overflow counter holds the samples lost while the FIFO was
+		// full, i.e. after the samples it currently holds
+		this.lastLostSamples = overflow;
+		if (overflow > 0) {
+			this.overflowCount++;
+			this.lostSampleCount += overflow;
+			this.pendingGap += overflow;
+			this.samplesBeforeGap = toRead;
+			advanceSensorTime(overflow);
+
+			if (fifoTap != null) {
+				fifoTap.onOverflow(overflow, toRead);
+			}
+		}
+
+		if (metrics != null) {
+			metrics.recordDrain(toRead, overflow);
+		}
+
+		return toRead;
+	}
+
+	private void advanceSensorTime(int samples) {
+		sensorTimeUs += samples * 1000000L / SAMPRATE_HZ[samplingRate];
+	}
+
+	/*
+	 * Start a conversion when due, read it once complete. Interleaved with the
+	 * drains so that no call blocks for the conversion time.
+	 */
+	private void serviceTemperature() throws IOException {
+		if (temperatureStartUs >= 0) {
+			if (sensorTimeUs - temperatureStartUs >= TEMPERATURE_CONVERSION_MS * 1000L) {
+				temperatureStartUs = -1;
+				retrieveTemperature();
+			}
+		} else if (temperatureIntervalMs > 0
+				&& (temperatureTimeUs < 0 || sensorTimeUs - temperatureTimeUs >= temperatureIntervalMs * 1000)) {
+			startTemperatureSampling();
+			temperatureStartUs = sensorTimeUs;
+		}
+	}
+
+	/**
+	 * Number of samples lost just before the next sample drained from the FIFO
+	 */
+	private int nextGap() {
+		if (pendingGap == 0) {
+			return 0;
+		}
+
+		if (samplesBeforeGap > 0) {
+			samplesBeforeGap--;
+			return 0;
+		}
+
+		int gap = pendingGap;
+		pendingGap = 0;
+		return gap;
+	}
+
+	private int readFifoData() throws IOException {
+		
+		long start = metrics != null ? System.nanoTime() : 0;
+
+		int toRead = getFifoSampleCount();
 		
 		if (toRead > 0) {
-			this.i2cmObj.read(this.i2cSlaveAddr, TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA, buffer, 0, 4 * toRead);
+			busRead(TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA, buffer, 0, 4 * toRead);
+			if (fifoTap != null) {
+				fifoTap.onSamples(buffer, 0, toRead);
+			}
 
 			for (int i = 0; i < toRead; i++) {
 				// Warning: the values are always left-aligned
 				int rawIRValue = BigBitConverter.ToUInt16(buffer, i * 4);
 				int rawRedValue = BigBitConverter.ToUInt16(buffer, i * 4 + 2);
 
-				this.rawIRQueue.add(rawIRValue);
-				this.rawRedQueue.add(rawRedValue);
-
+				this.sampleBuffer.push(rawIRValue, rawRedValue, nextGap());
 			}
 		}
+
+		advanceSensorTime(toRead);
+		serviceTemperature();
+
+		if (metrics != null) {
+			metrics.readFifoMicros.record((System.nanoTime() - start) / 1000);
+		}
 		
-		return rawIRQueue.size();
+		return sampleBuffer.size();
 
 	}
 
@@ -0,0 +1,54 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * MAX30100 register map and register bits
+ */
+class TiMAX30100Regsiters {
+
+	// Interrupt status register (RO)
+	public static final int MAX30100_REG_INTERRUPT_STATUS = 0x00;
+
+	public static final int MAX30100_IS_PWR_RDY = (1 << 0);
+	public static final int MAX30100_IS_SPO2_RDY = (1 << 4);
+	public static final int MAX30100_IS_HR_RDY = (1 << 5);
+	public static final int MAX30100_IS_TEMP_RDY = (1 << 6);
+	public static final int MAX30100_IS_A_FULL = (1 << 7);
+
+	// Interrupt enable register
+	public static final int MAX30100_REG_INTERRUPT_ENABLE = 0x01;
+	public static final int MAX30100_IE_ENB_SPO2_RDY = (1 << 4);
+	public static final int MAX30100_IE_ENB_HR_RDY = (1 << 5);
+	public static final int MAX30100_IE_ENB_TEMP_RDY = (1 << 6);
+	public static final int MAX30100_IE_ENB_A_FULL = (1 << 7);
+
+	// FIFO control and data registers
+	public static final int MAX30100_REG_FIFO_WRITE_POINTER = 0x02;
+	public static final int MAX30100_REG_FIFO_OVERFLOW_COUNTER = 0x03;
+	public static final int MAX30100_REG_FIFO_READ_POINTER = 0x04;
+	
+	// Burst read does not auto increment addr
+	public static final int MAX30100_REG_FIFO_DATA = 0x05; 
+
+	// Mode Configuration register
+	public static final int MAX30100_REG_MODE_CONFIGURATION = 0x06;
+
+	// SpO2 Configuration register
+	// Check tables 8 and 9, p19 of the MAX30100 datasheet to see the
+	// permissible
+	// combinations of sampling rates and pulse widths
+	public static final int MAX30100_REG_SPO2_CONFIGURATION = 0x07;
+
+	// LED Configuration register
+	public static final int MAX30100_REG_LED_CONFIGURATION = 0x09;
+
+	// Temperature integer part register
+	public static final int MAX30100_REG_TEMPERATURE_DATA_INT = 0x16;
+	// Temperature fractional part register
+	public static final int MAX30100_REG_TEMPERATURE_DATA_FRAC = 0x17;
+
+	// Revision ID register (RO)
+	public static final int MAX30100_REG_REVISION_ID = 0xfe;
+	// Part ID register
+	public static final int MAX30100_REG_PART_ID = 0xff;
+
+}
@@ -26,27 +26,95 @@ public class TiMAX30100_BeatDetector {
 	// thr chasing factor of the max value when beat
 	public static final double BEATDETECTOR_THRESHOLD_FALLOFF_TARGET = 0.3;
 
-	// thr chasing factor when no beat
+	// thr chasing factor when no beat, per sample at the default sample rate
 	public static final double BEATDETECTOR_THRESHOLD_DECAY_FACTOR = 0.99;
 
 	// in ms, no-beat time to cause a reset
 	public static final int BEATDETECTOR_INVALID_READOUT_DELAY = 2000;
 
-	// in ms, 1/Fs
+	// in ms, 1/Fs at the default 100Hz sample rate
 	public static final int BEATDETECTOR_SAMPLES_PERIOD = 10;
 
+	// in Hz, default sample rate
+	public static final int BEATDETECTOR_DEFAULT_SAMPLE_RATE = 1000 / BEATDETECTOR_SAMPLES_PERIOD;
+
 	BeatDetectorState state = BeatDetectorState.BEATDETECTOR_STATE_INIT;
 	double threshold = BEATDETECTOR_MIN_THRESHOLD;
 	double beatPeriod = 0;
 	double lastMaxValue = 0;
-	long tsLastBeat = 0;
+
+	// Time is derived from the sample index, samples arrive in FIFO bursts
+	// but are evenly spaced by the sensor
+	double samplePeriod = BEATDETECTOR_SAMPLES_PERIOD;
+	double thresholdDecay = BEATDETECTOR_THRESHOLD_DECAY_FACTOR;
+	long sampleIndex = 0;
+	long lastBeatIndex = 0;
+	// last detected edge, accepted or not, start of the masking
+	long lastEdgeIndex = 0;
+	long rejectedBeats = 0;
 
 	public TiMAX30100_BeatDetector() {
+		this(BEATDETECTOR_DEFAULT_SAMPLE_RATE);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            sample rate in Hz of the samples fed to addSample
+	 */
+	public TiMAX30100_BeatDetector(int sampleRate) {
+		setSampleRate(sampleRate);
+	}
+
+	/**
+	 * Set the sample rate in Hz of the samples fed to addSample
+	 * 
+	 * @param sampleRate
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("sample rate " + sampleRate);
+		}
 
+		this.samplePeriod = 1000.0 / sampleRate;
+		// same decay per second whatever the rate
+		this.thresholdDecay = Math.pow(BEATDETECTOR_THRESHOLD_DECAY_FACTOR,
+				(double) BEATDETECTOR_DEFAULT_SAMPLE_RATE / sampleRate);
 	}
 
 	public boolean addSample(double sample) {
-		return checkForBeat(sample);
+		return addSample(sample, true);
+	}
+
+	/**
+	 * Add a sample, with a beat gate
+	 * 
+	 * @param sample
+	 * @param acceptBeat
+	 *            false if a beat found on this sample must be ignored, e.g.
+	 *            during motion: the beat period is not updated
+	 * @return true if an accepted beat has been detected
+	 */
+	public boolean addSample(double sample, boolean acceptBeat) {
+		sampleIndex++;
+		return checkForBeat(sample, acceptBeat);
+	}
+
+	/**
+	 * Number of beats detected but not accepted
+	 * 
+	 * @return
+	 */
+	public long getRejectedBeats() {
+		return rejectedBeats;
+	}
+
+	/**
+	 * Time in ms of the last sample, counted from the first sample
+	 * 
+	 * @return
+	 */
+	public long getTimestamp() {
+		return (long) (sampleIndex * samplePeriod);
 	}
 
 	public double getRate() {
@@ -61,12 +129,12 @@ public class TiMAX30100_BeatDetector {
 		return threshold;
 	}
 
-	private boolean checkForBeat(double sample) {
+	private boolean checkForBeat(double sample, boolean acceptBeat) {
 		boolean beatDetected = false;
 	
 		switch (state) {
 		case BEATDETECTOR_STATE_INIT:
-			if (System.currentTimeMillis() > BEATDETECTOR_INIT_HOLDOFF) {
+			if (sampleIndex * samplePeriod > BEATDETECTOR_INIT_HOLDOFF) {
 				state = BeatDetectorState.BEATDETECTOR_STATE_WAITING;
 			}
 			break;
@@ -78,7 +146,7 @@ public class TiMAX30100_BeatDetector {
 			}
 
 			// Tracking lost, resetting
-			if (System.currentTimeMillis() - tsLastBeat > BEATDETECTOR_INVALID_READOUT_DELAY) {
+			if (getTimeSinceLastBeat() > BEATDETECTOR_INVALID_READOUT_DELAY) {
 				beatPeriod = 0;
 				lastMaxValue = 0;
 			}
@@ -95,25 +163,31 @@ public class TiMAX30100_BeatDetector {
 			break;
 
 		case BEATDETECTOR_STATE_MAYBE_DETECTED:
-			if (sample + BEATDETECTOR_STEP_RESILIENCY < threshold) {
+			if (sample + BEATDETECTOR_STEP_RESILIENCY < threshold && !acceptBeat) {
+				// Found a beat in a bad signal, mask it without using it
+				rejectedBeats++;
+				lastEdgeIndex = sampleIndex;
+				state = BeatDetectorState.BEATDETECTOR_STATE_MASKING;
+			} else if (sample + BEATDETECTOR_STEP_RESILIENCY < threshold) {
 				// Found a beat
 				beatDetected = true;
 				lastMaxValue = sample;
 				state = BeatDetectorState.BEATDETECTOR_STATE_MASKING;
 
-				long delta = System.currentTimeMillis() - tsLastBeat;
+				double delta = getTimeSinceLastBeat();
 				if (delta > 0) {
 					beatPeriod = BEATDETECTOR_BPFILTER_ALPHA * delta + (1 - BEATDETECTOR_BPFILTER_ALPHA) * beatPeriod;
 				}
 
-				tsLastBeat = System.currentTimeMillis();
+				lastBeatIndex = sampleIndex;
+				lastEdgeIndex = sampleIndex;
 			} else {
 				state = BeatDetectorState.BEATDETECTOR_STATE_FOLLOWING_SLOPE;
 			}
 			break;
 
 		case BEATDETECTOR_STATE_MASKING:
-			if (System.currentTimeMillis() - tsLastBeat > BEATDETECTOR_MASKING_HOLDOFF) {
+			if ((sampleIndex - lastEdgeIndex) * samplePeriod > BEATDETECTOR_MASKING_HOLDOFF) {
 				state = BeatDetectorState.BEATDETECTOR_STATE_WAITING;
 			}
 			decreaseThreshold();
@@ -123,14 +197,19 @@ public class TiMAX30100_BeatDetector {
 		return beatDetected;
 	}
 
+	// in ms
+	private double getTimeSinceLastBeat() {
+		return (sampleIndex - lastBeatIndex) * samplePeriod;
+	}
+
 	private void decreaseThreshold() {
 		// When a valid beat rate readout is present, target the
 		if (lastMaxValue > 0 && beatPeriod > 0) {
 			threshold -= lastMaxValue * (1 - BEATDETECTOR_THRESHOLD_FALLOFF_TARGET)
-					/ (beatPeriod / BEATDETECTOR_SAMPLES_PERIOD);
+					/ (beatPeriod / samplePeriod);
 		} else {
 			// Asymptotic decay
-			threshold *= BEATDETECTOR_THRESHOLD_DECAY_FACTOR;
+			threshold *= thresholdDecay;
 		}
 
 		if (threshold < BEATDETECTOR_MIN_THRESHOLD) {
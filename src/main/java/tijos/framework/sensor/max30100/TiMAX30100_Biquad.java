@@ -0,0 +1,91 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Second order IIR section in transposed direct form II, a first order
+ * filter is a biquad with b2 = a2 = 0
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Biquad implements TiMAX30100_DspStage {
+
+	private double b0, b1, b2, a1, a2;
+	private double z1 = 0, z2 = 0;
+
+	/**
+	 * Normalized coefficients, a0 = 1
+	 */
+	public TiMAX30100_Biquad(double b0, double b1, double b2, double a1, double a2) {
+		setCoefficients(b0, b1, b2, a1, a2);
+	}
+
+	public void setCoefficients(double b0, double b1, double b2, double a1, double a2) {
+		this.b0 = b0;
+		this.b1 = b1;
+		this.b2 = b2;
+		this.a1 = a1;
+		this.a2 = a2;
+	}
+
+	/**
+	 * First order Butterworth low pass, bilinear transform with prewarping
+	 * 
+	 * @param sampleRate
+	 *            Hz
+	 * @param cornerHz
+	 *            -3dB frequency, below sampleRate / 2
+	 */
+	public void setFirstOrderLowPass(double sampleRate, double cornerHz) {
+		checkCorner(sampleRate, cornerHz);
+
+		double k = Math.tan(Math.PI * cornerHz / sampleRate);
+		double b = k / (1 + k);
+		setCoefficients(b, b, 0, (k - 1) / (k + 1), 0);
+	}
+
+	/**
+	 * Second order low pass (RBJ cookbook)
+	 * 
+	 * @param sampleRate
+	 *            Hz
+	 * @param cornerHz
+	 *            -3dB frequency for q = 1/sqrt(2), below sampleRate / 2
+	 * @param q
+	 *            quality factor
+	 */
+	public void setLowPass(double sampleRate, double cornerHz, double q) {
+		checkCorner(sampleRate, cornerHz);
+
+		double w0 = 2 * Math.PI * cornerHz / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2 * q);
+		double a0 = 1 + alpha;
+
+		setCoefficients((1 - cos) / 2 / a0, (1 - cos) / a0, (1 - cos) / 2 / a0, -2 * cos / a0, (1 - alpha) / a0);
+	}
+
+	public void process(double[] buffer, int off, int len) {
+		double s1 = z1;
+		double s2 = z2;
+		for (int i = off; i < off + len; i++) {
+			double x = buffer[i];
+			double y = b0 * x + s1;
+			s1 = b1 * x - a1 * y + s2;
+			s2 = b2 * x - a2 * y;
+			buffer[i] = y;
+		}
+		z1 = s1;
+		z2 = s2;
+	}
+
+	public void reset() {
+		z1 = 0;
+		z2 = 0;
+	}
+
+	private static void checkCorner(double sampleRate, double cornerHz) {
+		if (cornerHz <= 0 || cornerHz >= sampleRate / 2) {
+			throw new IllegalArgumentException("corner " + cornerHz + "Hz at " + sampleRate + "Hz");
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * DC remover, first order IIR high pass w[n] = x[n] + alpha * w[n-1], y[n] =
+ * w[n] - w[n-1] <br>
+ * http://sam-koblenski.blogspot.de/2015/11/everyday-dsp-for-programmers-dc-and.html
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_DcRemover implements TiMAX30100_DspStage {
+
+	private double alpha;
+	private double dcw = 0;
+
+	/**
+	 * @param alpha
+	 *            pole of the filter, closer to 1 for a lower corner
+	 */
+	public TiMAX30100_DcRemover(double alpha) {
+		setAlpha(alpha);
+	}
+
+	public void setAlpha(double alpha) {
+		if (alpha <= 0 || alpha >= 1) {
+			throw new IllegalArgumentException("alpha " + alpha);
+		}
+
+		this.alpha = alpha;
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	public void process(double[] buffer, int off, int len) {
+		double w = dcw;
+		for (int i = off; i < off + len; i++) {
+			double old = w;
+			w = buffer[i] + alpha * w;
+			buffer[i] = w - old;
+		}
+		dcw = w;
+	}
+
+	public double step(double x) {
+		double olddcw = dcw;
+		dcw = x + alpha * dcw;
+
+		return dcw - olddcw;
+	}
+
+	/**
+	 * Filter state, proportional to the DC level of the input
+	 * 
+	 * @return
+	 */
+	public double getDCW() {
+		return dcw;
+	}
+
+	/**
+	 * DC level of the input, in input units whatever the alpha
+	 * 
+	 * @return
+	 */
+	public double getDC() {
+		return dcw * (1 - alpha);
+	}
+
+	public void reset() {
+		dcw = 0;
+	}
+}
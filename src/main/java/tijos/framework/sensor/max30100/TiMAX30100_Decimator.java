@@ -0,0 +1,107 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * CIC decimator: N integrators at the input rate, downsampling by R, N combs
+ * at the output rate. The response has nulls at multiples of the output rate
+ * so the bands folding onto the pass band are attenuated, and the gain R^N is
+ * removed from the output. No multiplication and no allocation per sample.
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Decimator {
+
+	/**
+	 * Default number of integrator / comb stages
+	 */
+	public static final int DEFAULT_STAGES = 3;
+
+	private int factor;
+	private long gain;
+
+	private long[] integrators;
+	private long[] combs;
+	private int phase = 0;
+
+	/**
+	 * @param factor
+	 *            decimation factor R, 1 passes the samples through
+	 */
+	public TiMAX30100_Decimator(int factor) {
+		this(factor, DEFAULT_STAGES);
+	}
+
+	/**
+	 * @param factor
+	 *            decimation factor R, 1 passes the samples through
+	 * @param stages
+	 *            number of stages N, 1 is a plain average over R samples
+	 */
+	public TiMAX30100_Decimator(int factor, int stages) {
+		if (factor < 1 || stages < 1 || Math.pow(factor, stages) > (1L << 40)) {
+			throw new IllegalArgumentException("decimation " + factor + "/" + stages);
+		}
+
+		this.factor = factor;
+		this.integrators = new long[stages];
+		this.combs = new long[stages];
+
+		gain = 1;
+		for (int i = 0; i < stages; i++) {
+			gain *= factor;
+		}
+	}
+
+	public int getFactor() {
+		return factor;
+	}
+
+	/**
+	 * Decimate a block, the phase carries over to the next block
+	 * 
+	 * @param in
+	 *            input samples
+	 * @param inOff
+	 * @param len
+	 *            number of input samples
+	 * @param out
+	 *            decimated samples, room for (len + factor - 1) / factor
+	 * @param outOff
+	 * @return number of decimated samples written
+	 */
+	public int process(int[] in, int inOff, int len, int[] out, int outOff) {
+		int stages = integrators.length;
+		int count = 0;
+
+		for (int i = inOff; i < inOff + len; i++) {
+			long acc = in[i];
+			for (int s = 0; s < stages; s++) {
+				integrators[s] += acc;
+				acc = integrators[s];
+			}
+
+			if (++phase < factor) {
+				continue;
+			}
+			phase = 0;
+
+			for (int s = 0; s < stages; s++) {
+				long delayed = combs[s];
+				combs[s] = acc;
+				acc -= delayed;
+			}
+
+			out[outOff + count++] = (int) ((acc + gain / 2) / gain);
+		}
+
+		return count;
+	}
+
+	public void reset() {
+		for (int i = 0; i < integrators.length; i++) {
+			integrators[i] = 0;
+			combs[i] = 0;
+		}
+		phase = 0;
+	}
+}
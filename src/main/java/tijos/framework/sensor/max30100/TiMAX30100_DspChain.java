@@ -0,0 +1,96 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Stages applied one after the other on blocks of samples, each stage runs
+ * over the whole block before the next one
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_DspChain implements TiMAX30100_DspStage {
+
+	private TiMAX30100_DspStage[] stages = new TiMAX30100_DspStage[4];
+	private int stageNum = 0;
+
+	/**
+	 * First order Butterworth low pass, 10Hz at 100Hz gives the coefficients
+	 * of the original FilterBuLp1
+	 * 
+	 * @param sampleRate
+	 *            Hz
+	 * @param cornerHz
+	 * @return
+	 */
+	public static TiMAX30100_Biquad firstOrderLowPass(double sampleRate, double cornerHz) {
+		TiMAX30100_Biquad filter = new TiMAX30100_Biquad(1, 0, 0, 0, 0);
+		filter.setFirstOrderLowPass(sampleRate, cornerHz);
+		return filter;
+	}
+
+	/**
+	 * Second order Butterworth low pass
+	 * 
+	 * @param sampleRate
+	 *            Hz
+	 * @param cornerHz
+	 * @return
+	 */
+	public static TiMAX30100_Biquad biquadLowPass(double sampleRate, double cornerHz) {
+		TiMAX30100_Biquad filter = new TiMAX30100_Biquad(1, 0, 0, 0, 0);
+		filter.setLowPass(sampleRate, cornerHz, Math.sqrt(0.5));
+		return filter;
+	}
+
+	public static TiMAX30100_DcRemover dcRemover(double alpha) {
+		return new TiMAX30100_DcRemover(alpha);
+	}
+
+	public static TiMAX30100_MovingAverage movingAverage(int length) {
+		return new TiMAX30100_MovingAverage(length);
+	}
+
+	/**
+	 * Append a stage
+	 * 
+	 * @param stage
+	 * @return this chain
+	 */
+	public TiMAX30100_DspChain add(TiMAX30100_DspStage stage) {
+		if (stage == null || stage == this) {
+			throw new IllegalArgumentException("stage");
+		}
+
+		if (stageNum == stages.length) {
+			TiMAX30100_DspStage[] grown = new TiMAX30100_DspStage[stageNum * 2];
+			System.arraycopy(stages, 0, grown, 0, stageNum);
+			stages = grown;
+		}
+
+		stages[stageNum++] = stage;
+		return this;
+	}
+
+	public int size() {
+		return stageNum;
+	}
+
+	public TiMAX30100_DspStage getStage(int index) {
+		if (index < 0 || index >= stageNum) {
+			throw new IndexOutOfBoundsException("stage " + index);
+		}
+
+		return stages[index];
+	}
+
+	public void process(double[] buffer, int off, int len) {
+		for (int i = 0; i < stageNum; i++) {
+			stages[i].process(buffer, off, len);
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < stageNum; i++) {
+			stages[i].reset();
+		}
+	}
+}
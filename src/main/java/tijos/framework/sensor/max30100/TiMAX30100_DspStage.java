@@ -0,0 +1,26 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Signal processing stage working in place on blocks of samples, see
+ * {@link TiMAX30100_DspChain}
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_DspStage {
+
+	/**
+	 * Filter a block of samples in place, the state carries over to the next
+	 * block
+	 * 
+	 * @param buffer
+	 * @param off
+	 * @param len
+	 */
+	void process(double[] buffer, int off, int len);
+
+	/**
+	 * Clear the state
+	 */
+	void reset();
+}
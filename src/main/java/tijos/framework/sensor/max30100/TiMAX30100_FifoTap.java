@@ -0,0 +1,34 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Observer of the raw FIFO traffic of a {@link TiMAX30100}, called on the
+ * draining thread. Implementations must be quick and must not throw.
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_FifoTap {
+
+	/**
+	 * FIFO words drained from the sensor, the buffer is reused by the driver
+	 * and only valid during the call
+	 * 
+	 * @param words
+	 *            4 bytes per sample, IR then Red, big endian left-aligned
+	 * @param off
+	 *            offset of the first word
+	 * @param count
+	 *            number of samples
+	 */
+	void onSamples(byte[] words, int off, int count);
+
+	/**
+	 * The FIFO overflowed, the lost samples come after the ones it holds
+	 * 
+	 * @param lost
+	 *            number of samples lost
+	 * @param samplesBefore
+	 *            number of samples still in the FIFO before the gap
+	 */
+	void onOverflow(int lost, int samplesBefore);
+}
@@ -0,0 +1,147 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Fixed-bucket histogram, recording, snapshot and reset do not allocate
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Histogram {
+
+	// inclusive upper bound of each bucket, the last bucket is unbounded
+	private final long[] upperBounds;
+	private final long[] counts;
+
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	/**
+	 * Buckets 0, 1, 2..3, 4..7, ... doubling up to 2^(buckets-2), plus an
+	 * overflow bucket
+	 * 
+	 * @param buckets
+	 * @return
+	 */
+	public static TiMAX30100_Histogram exponential(int buckets) {
+		long[] bounds = new long[buckets];
+		bounds[0] = 0;
+		for (int i = 1; i < buckets; i++) {
+			bounds[i] = (1L << i) - 1;
+		}
+		bounds[buckets - 1] = Long.MAX_VALUE;
+		return new TiMAX30100_Histogram(bounds);
+	}
+
+	/**
+	 * One bucket per value from 0 to buckets-2, plus an overflow bucket
+	 * 
+	 * @param buckets
+	 * @return
+	 */
+	public static TiMAX30100_Histogram linear(int buckets) {
+		long[] bounds = new long[buckets];
+		for (int i = 0; i < buckets; i++) {
+			bounds[i] = i;
+		}
+		bounds[buckets - 1] = Long.MAX_VALUE;
+		return new TiMAX30100_Histogram(bounds);
+	}
+
+	/**
+	 * @param upperBounds
+	 *            inclusive upper bound of each bucket in increasing order, the
+	 *            last one should be Long.MAX_VALUE
+	 */
+	public TiMAX30100_Histogram(long[] upperBounds) {
+		this.upperBounds = upperBounds;
+		this.counts = new long[upperBounds.length];
+	}
+
+	public void record(long value) {
+		int i = 0;
+		while (i < upperBounds.length - 1 && value > upperBounds[i]) {
+			i++;
+		}
+
+		counts[i]++;
+		count++;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public int getBucketNum() {
+		return counts.length;
+	}
+
+	public long getBucketUpperBound(int bucket) {
+		return upperBounds[bucket];
+	}
+
+	public long getBucketCount(int bucket) {
+		return counts[bucket];
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count > 0 ? (double) sum / count : 0;
+	}
+
+	/**
+	 * Smallest bucket upper bound below which the given fraction of the values
+	 * fall
+	 * 
+	 * @param fraction
+	 *            0 to 1
+	 * @return
+	 */
+	public long getPercentile(double fraction) {
+		long target = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target && seen > 0) {
+				return i == counts.length - 1 ? max : upperBounds[i];
+			}
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Copy the content into a histogram with the same buckets
+	 * 
+	 * @param dst
+	 */
+	public void copyTo(TiMAX30100_Histogram dst) {
+		if (dst.counts.length != counts.length) {
+			throw new IllegalArgumentException("bucket number mismatch");
+		}
+
+		System.arraycopy(counts, 0, dst.counts, 0, counts.length);
+		dst.count = count;
+		dst.sum = sum;
+		dst.max = max;
+	}
+}
@@ -0,0 +1,338 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+/**
+ * Drives many TiMAX30100 on one or more I2C buses from a single scheduler.
+ * <br>
+ * Each round the FIFO level of every sensor is estimated from its sampling
+ * rate and the time since its last drain, without bus access. Sensors above
+ * the drain threshold are drained fullest first; the sensors of one bus are
+ * drained back to back so that a multiplexer channel is only switched when
+ * needed. The sensors behind one multiplexer are grouped by its selector,
+ * since each sensor built from a TiI2CMaster has its own bus wrapper.
+ * Samples are delivered to the listener tagged with the sensor id.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Hub {
+
+	/**
+	 * Default FIFO level that triggers a drain, half of the FIFO
+	 */
+	public static final int DEFAULT_DRAIN_THRESHOLD = TiMAX30100.MAX30100_FIFO_DEPTH / 2;
+
+	private static final int NO_CHANNEL = -1;
+
+	private TiMAX30100_HubListener listener;
+
+	// per sensor
+	private TiMAX30100[] sensors;
+	private int[] sensorIds;
+	private int[] sensorBus;
+	private int[] muxChannels;
+	private long[] drainCount;
+	private long[] sampleCount;
+	private int sensorNum = 0;
+
+	// per bus: the multiplexer selector, or the bus itself without one
+	private Object[] buses;
+	private TiMAX30100_MuxSelector[] muxes;
+	private int[] currentChannel;
+	private int busNum = 0;
+
+	private int drainThreshold = DEFAULT_DRAIN_THRESHOLD;
+
+	// scheduling scratch, no allocation per round
+	private int[] levels;
+	private int[] order;
+	private int[] busUrgency;
+
+	private int[] irBuffer = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+	private int[] redBuffer = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+
+	private long muxSwitchCount = 0;
+
+	private volatile boolean running = false;
+
+	/**
+	 * @param maxSensors
+	 *            maximum number of sensors managed by the hub
+	 * @param listener
+	 *            receiver of the drained samples
+	 */
+	public TiMAX30100_Hub(int maxSensors, TiMAX30100_HubListener listener) {
+		this.listener = listener;
+
+		sensors = new TiMAX30100[maxSensors];
+		sensorIds = new int[maxSensors];
+		sensorBus = new int[maxSensors];
+		muxChannels = new int[maxSensors];
+		drainCount = new long[maxSensors];
+		sampleCount = new long[maxSensors];
+
+		buses = new Object[maxSensors];
+		muxes = new TiMAX30100_MuxSelector[maxSensors];
+		currentChannel = new int[maxSensors];
+
+		levels = new int[maxSensors];
+		order = new int[maxSensors];
+		busUrgency = new int[maxSensors];
+	}
+
+	/**
+	 * Add a sensor directly attached to its bus
+	 *
+	 * @param sensorId
+	 *            id passed back to the listener
+	 * @param sensor
+	 *            initialized sensor
+	 */
+	public void addSensor(int sensorId, TiMAX30100 sensor) {
+		addSensor(sensorId, sensor, null, NO_CHANNEL);
+	}
+
+	/**
+	 * Add a sensor behind an I2C multiplexer, all the sensors behind one
+	 * multiplexer must share the same bus and selector
+	 *
+	 * @param sensorId
+	 *            id passed back to the listener
+	 * @param sensor
+	 *            initialized sensor
+	 * @param mux
+	 *            channel switching hook
+	 * @param channel
+	 *            multiplexer channel of the sensor
+	 */
+	public void addSensor(int sensorId, TiMAX30100 sensor, TiMAX30100_MuxSelector mux, int channel) {
+		if (sensorNum == sensors.length) {
+			throw new IllegalStateException("too many sensors");
+		}
+
+		TiMAX30100_I2CBus bus = sensor.getBus();
+		for (int i = 0; i < sensorNum; i++) {
+			if (sensors[i].getBus() == bus && muxes[sensorBus[i]] != mux) {
+				throw new IllegalArgumentException("sensors of one bus must share the multiplexer");
+			}
+		}
+
+		// the channel selected is a state of the multiplexer, not of the
+		// bus wrapper
+		Object key = mux != null ? mux : bus;
+
+		int busIndex = 0;
+		while (busIndex < busNum && buses[busIndex] != key) {
+			busIndex++;
+		}
+
+		if (busIndex == busNum) {
+			buses[busNum] = key;
+			muxes[busNum] = mux;
+			currentChannel[busNum] = NO_CHANNEL;
+			busNum++;
+		}
+
+		sensors[sensorNum] = sensor;
+		sensorIds[sensorNum] = sensorId;
+		sensorBus[sensorNum] = busIndex;
+		muxChannels[sensorNum] = channel;
+		sensorNum++;
+	}
+
+	/**
+	 * FIFO level that triggers a drain
+	 *
+	 * @param samples
+	 *            1 to MAX30100_FIFO_DEPTH
+	 */
+	public void setDrainThreshold(int samples) {
+		if (samples < 1 || samples > TiMAX30100.MAX30100_FIFO_DEPTH) {
+			throw new IllegalArgumentException("drain threshold " + samples);
+		}
+
+		this.drainThreshold = samples;
+	}
+
+	/**
+	 * Run one scheduling round
+	 *
+	 * @return number of sensors drained
+	 * @throws IOException
+	 */
+	public int poll() throws IOException {
+		int candidates = 0;
+
+		for (int i = 0; i < busNum; i++) {
+			busUrgency[i] = 0;
+		}
+
+		for (int i = 0; i < sensorNum; i++) {
+			levels[i] = sensors[i].estimateFifoLevel();
+			if (levels[i] >= drainThreshold) {
+				order[candidates++] = i;
+				if (levels[i] > busUrgency[sensorBus[i]]) {
+					busUrgency[sensorBus[i]] = levels[i];
+				}
+			}
+		}
+
+		sortCandidates(candidates);
+
+		for (int i = 0; i < candidates; i++) {
+			drain(order[i]);
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Time in ms until the next sensor is expected to reach the drain
+	 * threshold
+	 *
+	 * @return
+	 */
+	public long pollIntervalHint() {
+		long delay = Long.MAX_VALUE;
+		for (int i = 0; i < sensorNum; i++) {
+			delay = Math.min(delay, sensors[i].getDelayForSamples(drainThreshold));
+		}
+
+		return delay == Long.MAX_VALUE ? 0 : delay;
+	}
+
+	/**
+	 * Poll continuously on the calling thread until stop is called
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		running = true;
+		while (running) {
+			poll();
+
+			long delay = pollIntervalHint();
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make run return after the current round
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	public int getSensorCount() {
+		return sensorNum;
+	}
+
+	/**
+	 * Number of drains of a sensor
+	 *
+	 * @param sensorId
+	 * @return
+	 */
+	public long getDrainCount(int sensorId) {
+		return drainCount[indexOf(sensorId)];
+	}
+
+	/**
+	 * Number of samples delivered for a sensor
+	 *
+	 * @param sensorId
+	 * @return
+	 */
+	public long getSampleCount(int sensorId) {
+		return sampleCount[indexOf(sensorId)];
+	}
+
+	/**
+	 * Number of multiplexer channel switches
+	 *
+	 * @return
+	 */
+	public long getMuxSwitchCount() {
+		return muxSwitchCount;
+	}
+
+	private int indexOf(int sensorId) {
+		for (int i = 0; i < sensorNum; i++) {
+			if (sensorIds[i] == sensorId) {
+				return i;
+			}
+		}
+
+		throw new IllegalArgumentException("unknown sensor " + sensorId);
+	}
+
+	private void drain(int index) throws IOException {
+		int bus = sensorBus[index];
+		int channel = muxChannels[index];
+
+		if (muxes[bus] != null && currentChannel[bus] != channel) {
+			muxes[bus].select(channel);
+			currentChannel[bus] = channel;
+			muxSwitchCount++;
+		}
+
+		int count = sensors[index].readFifoSamples(irBuffer, redBuffer, 0, irBuffer.length);
+		drainCount[index]++;
+		sampleCount[index] += count;
+
+		if (count > 0 && listener != null) {
+			listener.onSamples(sensorIds[index], irBuffer, redBuffer, count);
+		}
+	}
+
+	/*
+	 * Buses by most urgent sensor first, then sensors of a bus fullest first
+	 * and by multiplexer channel to limit the switches. Insertion sort, the
+	 * number of sensors is small.
+	 */
+	private void sortCandidates(int candidates) {
+		for (int i = 1; i < candidates; i++) {
+			int current = order[i];
+			int j = i - 1;
+			while (j >= 0 && compare(order[j], current) > 0) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = current;
+		}
+	}
+
+	private int compare(int a, int b) {
+		int busA = sensorBus[a];
+		int busB = sensorBus[b];
+
+		if (busA != busB) {
+			if (busUrgency[busA] != busUrgency[busB]) {
+				return busUrgency[busB] - busUrgency[busA];
+			}
+			return busA - busB;
+		}
+
+		if (levels[a] != levels[b]) {
+			return levels[b] - levels[a];
+		}
+
+		// keep the channel currently selected first
+		int current = currentChannel[busA];
+		if (muxChannels[a] == current && muxChannels[b] != current) {
+			return -1;
+		}
+		if (muxChannels[b] == current && muxChannels[a] != current) {
+			return 1;
+		}
+
+		return muxChannels[a] - muxChannels[b];
+	}
+}
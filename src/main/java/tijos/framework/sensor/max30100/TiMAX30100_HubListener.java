@@ -0,0 +1,25 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Receiver of the samples drained by {@link TiMAX30100_Hub}
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_HubListener {
+
+	/**
+	 * Samples drained from one sensor, the arrays are reused by the hub and
+	 * only valid during the call
+	 * 
+	 * @param sensorId
+	 *            id given to addSensor
+	 * @param ir
+	 *            IR values
+	 * @param red
+	 *            Red values
+	 * @param count
+	 *            number of samples
+	 */
+	void onSamples(int sensorId, int[] ir, int[] red, int count);
+}
@@ -0,0 +1,50 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+/**
+ * I2C bus used by {@link TiMAX30100}, implemented on top of TiI2CMaster for
+ * the real device and by {@link TiMAX30100_Simulator} for hardware-free runs
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_I2CBus {
+
+	/**
+	 * Set bus speed
+	 * 
+	 * @param baudrate
+	 *            in kbps
+	 * @throws IOException
+	 */
+	void setWorkBaudrate(int baudrate) throws IOException;
+
+	/**
+	 * Read registers starting from a register address
+	 * 
+	 * @param address
+	 *            slave address
+	 * @param register
+	 *            first register
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	void read(int address, int register, byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Write registers starting from a register address
+	 * 
+	 * @param address
+	 *            slave address
+	 * @param register
+	 *            first register
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	void write(int address, int register, byte[] buffer, int offset, int length) throws IOException;
+}
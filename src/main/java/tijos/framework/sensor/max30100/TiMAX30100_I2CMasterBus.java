@@ -0,0 +1,32 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+import tijos.framework.devicecenter.TiI2CMaster;
+
+/**
+ * TiMAX30100_I2CBus on top of a TiJOS I2C master port
+ * 
+ * @author TiJOS
+ *
+ */
+class TiMAX30100_I2CMasterBus implements TiMAX30100_I2CBus {
+
+	private TiI2CMaster i2cmObj;
+
+	TiMAX30100_I2CMasterBus(TiI2CMaster i2c) {
+		this.i2cmObj = i2c;
+	}
+
+	public void setWorkBaudrate(int baudrate) throws IOException {
+		this.i2cmObj.setWorkBaudrate(baudrate);
+	}
+
+	public void read(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+		this.i2cmObj.read(address, register, buffer, offset, length);
+	}
+
+	public void write(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+		this.i2cmObj.write(address, register, buffer, offset, length);
+	}
+}
@@ -0,0 +1,48 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Interrupt source signalled by software, call {@link #signal()} from a GPIO
+ * event listener or from test code
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_InterruptLatch implements TiMAX30100_InterruptSource {
+
+	private boolean signalled = false;
+
+	public TiMAX30100_InterruptLatch() {
+
+	}
+
+	/**
+	 * Mark the interrupt as pending and wake up the waiting thread
+	 */
+	public synchronized void signal() {
+		signalled = true;
+		notifyAll();
+	}
+
+	public synchronized boolean waitForInterrupt(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+
+		while (!signalled) {
+			long remaining = 0;
+			if (timeoutMs > 0) {
+				remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+			}
+
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		signalled = false;
+		return true;
+	}
+}
@@ -0,0 +1,19 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Source of the MAX30100 INT pin events, typically a GPIO falling edge
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_InterruptSource {
+
+	/**
+	 * Block until the sensor signals an interrupt
+	 * 
+	 * @param timeoutMs
+	 *            maximum time to wait in ms, 0 to wait forever
+	 * @return true if an interrupt was signalled, false on timeout
+	 */
+	boolean waitForInterrupt(long timeoutMs);
+}
@@ -0,0 +1,344 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Automatic LED current control of both channels. <br>
+ * The raw DC level of each channel is averaged over an evaluation period and
+ * kept inside a target band. At start, after clipping or after the signal is
+ * lost the controller is in fast mode: short periods and a current jump
+ * proportional to the level error. Once both channels stayed in the band
+ * for a few periods it switches to tracking: longer periods and one current
+ * step at a time, only when a level leaves the band. The band is the
+ * hysteresis, a current is never changed while its level is inside.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_LedAgc {
+
+	/**
+	 * Default target band of the raw DC level, 50% to 75% of full scale
+	 */
+	public static final int DEFAULT_TARGET_LOW = 0x8000;
+	public static final int DEFAULT_TARGET_HIGH = 0xC000;
+
+	/**
+	 * Default level from which a sample is considered clipped
+	 */
+	public static final int DEFAULT_CLIP_LEVEL = 0xFF00;
+
+	/**
+	 * Default DC level under which there is no usable signal
+	 */
+	public static final int DEFAULT_LOW_SIGNAL_LEVEL = 0x0400;
+
+	/**
+	 * Default evaluation periods in ms
+	 */
+	public static final int DEFAULT_FAST_PERIOD_MS = 100;
+	public static final int DEFAULT_TRACKING_PERIOD_MS = 1000;
+
+	// in-band fast periods before tracking
+	private static final int SETTLE_PERIODS = 3;
+
+	private static final int IR = 0;
+	private static final int RED = 1;
+
+	private int targetLow = DEFAULT_TARGET_LOW;
+	private int targetHigh = DEFAULT_TARGET_HIGH;
+	private int clipLevel = DEFAULT_CLIP_LEVEL;
+	private int lowSignalLevel = DEFAULT_LOW_SIGNAL_LEVEL;
+	private int minCurrent = TiMAX30100.MAX30100_LED_CURR_4_4MA;
+	private int maxCurrent = TiMAX30100.MAX30100_LED_CURR_50MA;
+	private int fastPeriodMs = DEFAULT_FAST_PERIOD_MS;
+	private int trackingPeriodMs = DEFAULT_TRACKING_PERIOD_MS;
+	private int sampleRate = TiMAX30100_BeatDetector.BEATDETECTOR_DEFAULT_SAMPLE_RATE;
+
+	// per channel
+	private int[] current = new int[] { TiMAX30100.MAX30100_LED_CURR_50MA, TiMAX30100.MAX30100_LED_CURR_27_1MA };
+	private long[] sum = new long[2];
+	private int[] clipped = new int[2];
+	private int[] level = new int[2];
+
+	private int periodSamples = 0;
+	private int skipSamples = 0;
+
+	private boolean tracking = false;
+	private int inBandPeriods = 0;
+	private boolean clipping = false;
+	private boolean signalLow = false;
+	private boolean outOfRange = false;
+
+	/**
+	 * Target band of the raw DC level of both channels
+	 *
+	 * @param low
+	 * @param high
+	 */
+	public void setTargetBand(int low, int high) {
+		if (low <= 0 || high <= low || high > 0xFFFF) {
+			throw new IllegalArgumentException("target band " + low + "-" + high);
+		}
+
+		this.targetLow = low;
+		this.targetHigh = high;
+	}
+
+	/**
+	 * @param clipLevel
+	 *            raw value from which a sample is considered clipped
+	 * @param lowSignalLevel
+	 *            DC level under which there is no usable signal at the
+	 *            highest current
+	 */
+	public void setLimits(int clipLevel, int lowSignalLevel) {
+		if (lowSignalLevel < 0 || clipLevel <= lowSignalLevel || clipLevel > 0xFFFF) {
+			throw new IllegalArgumentException("limits " + clipLevel + "/" + lowSignalLevel);
+		}
+
+		this.clipLevel = clipLevel;
+		this.lowSignalLevel = lowSignalLevel;
+	}
+
+	/**
+	 * Range of the LED currents, the highest one caps the power
+	 *
+	 * @param min
+	 * @param max
+	 *            MAX30100_LED_CURR_xxx
+	 */
+	public void setCurrentRange(int min, int max) {
+		if (min < TiMAX30100.MAX30100_LED_CURR_0MA || max > TiMAX30100.MAX30100_LED_CURR_50MA || min > max) {
+			throw new IllegalArgumentException("current range " + min + "-" + max);
+		}
+
+		this.minCurrent = min;
+		this.maxCurrent = max;
+		current[IR] = clamp(current[IR]);
+		current[RED] = clamp(current[RED]);
+	}
+
+	/**
+	 * Evaluation periods
+	 *
+	 * @param fastMs
+	 *            while converging
+	 * @param trackingMs
+	 *            once converged
+	 */
+	public void setPeriods(int fastMs, int trackingMs) {
+		if (fastMs <= 0 || trackingMs < fastMs) {
+			throw new IllegalArgumentException("periods " + fastMs + "/" + trackingMs);
+		}
+
+		this.fastPeriodMs = fastMs;
+		this.trackingPeriodMs = trackingMs;
+	}
+
+	/**
+	 * Rate in Hz of the samples passed to update
+	 *
+	 * @param sampleRate
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("sample rate " + sampleRate);
+		}
+
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Currents in use, the controller starts from them
+	 *
+	 * @param irLedCurrent
+	 * @param redLedCurrent
+	 *            MAX30100_LED_CURR_xxx
+	 */
+	public void setLedsCurrent(int irLedCurrent, int redLedCurrent) {
+		current[IR] = clamp(irLedCurrent);
+		current[RED] = clamp(redLedCurrent);
+		restartPeriod();
+	}
+
+	public int getIRLedCurrent() {
+		return current[IR];
+	}
+
+	public int getRedLedCurrent() {
+		return current[RED];
+	}
+
+	/**
+	 * Back to fast mode
+	 */
+	public void reset() {
+		tracking = false;
+		inBandPeriods = 0;
+		clipping = false;
+		signalLow = false;
+		restartPeriod();
+	}
+
+	/**
+	 * Add raw samples
+	 *
+	 * @param ir
+	 * @param red
+	 * @param off
+	 * @param sampleNum
+	 * @return true if the currents must be written to the sensor
+	 */
+	public boolean update(int[] ir, int[] red, int off, int sampleNum) {
+		for (int i = off; i < off + sampleNum; i++) {
+			// samples converted before the last current change are still in
+			// the FIFO
+			if (skipSamples > 0) {
+				skipSamples--;
+				continue;
+			}
+
+			sum[IR] += ir[i];
+			sum[RED] += red[i];
+			if (ir[i] >= clipLevel) {
+				clipped[IR]++;
+			}
+			if (red[i] >= clipLevel) {
+				clipped[RED]++;
+			}
+			periodSamples++;
+		}
+
+		int period = (tracking ? trackingPeriodMs : fastPeriodMs) * sampleRate / 1000;
+		if (periodSamples < Math.max(1, period)) {
+			return false;
+		}
+
+		level[IR] = (int) (sum[IR] / periodSamples);
+		level[RED] = (int) (sum[RED] / periodSamples);
+
+		clipping = false;
+		signalLow = false;
+		outOfRange = false;
+		int irCurrent = adjust(IR);
+		int redCurrent = adjust(RED);
+
+		boolean changed = irCurrent != current[IR] || redCurrent != current[RED];
+		current[IR] = irCurrent;
+		current[RED] = redCurrent;
+
+		if (outOfRange) {
+			tracking = false;
+			inBandPeriods = 0;
+		} else if (changed) {
+			inBandPeriods = 0;
+		} else if (!tracking && ++inBandPeriods >= SETTLE_PERIODS) {
+			tracking = true;
+		}
+
+		restartPeriod();
+		if (changed) {
+			skipSamples = TiMAX30100.MAX30100_FIFO_DEPTH;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Converged and tracking slowly
+	 *
+	 * @return
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * A channel clipped during the last period
+	 *
+	 * @return
+	 */
+	public boolean isClipping() {
+		return clipping;
+	}
+
+	/**
+	 * A channel is under the low signal level at the highest current: no
+	 * finger or too much absorption
+	 *
+	 * @return
+	 */
+	public boolean isSignalLow() {
+		return signalLow;
+	}
+
+	/**
+	 * Raw DC level of the last period
+	 *
+	 * @return
+	 */
+	public int getIRLevel() {
+		return level[IR];
+	}
+
+	public int getRedLevel() {
+		return level[RED];
+	}
+
+	private int adjust(int channel) {
+		int code = current[channel];
+		int dc = level[channel];
+
+		if (clipped[channel] > 0) {
+			clipping = true;
+			outOfRange = true;
+			// the mean is underestimated when clipped, step down
+			return clamp(code - (tracking ? 1 : 2));
+		}
+
+		if (dc < lowSignalLevel) {
+			outOfRange = true;
+			signalLow |= code == maxCurrent;
+		}
+
+		if (dc >= targetLow && dc <= targetHigh) {
+			return code;
+		}
+
+		int step = dc < targetLow ? 1 : -1;
+		if (tracking || dc == 0 || code == TiMAX30100.MAX30100_LED_CURR_0MA) {
+			return clamp(code + step);
+		}
+
+		// the level is proportional to the current, aim at the band center
+		double targetMa = TiMAX30100.getLedCurrentMa(code) * ((targetLow + targetHigh) / 2.0) / dc;
+		int target = nearestCurrent(targetMa);
+		if (target == code) {
+			target = code + step;
+		}
+
+		return clamp(target);
+	}
+
+	private static int nearestCurrent(double ma) {
+		int best = TiMAX30100.MAX30100_LED_CURR_0MA;
+		for (int i = TiMAX30100.MAX30100_LED_CURR_0MA; i <= TiMAX30100.MAX30100_LED_CURR_50MA; i++) {
+			if (Math.abs(TiMAX30100.getLedCurrentMa(i) - ma) < Math.abs(TiMAX30100.getLedCurrentMa(best) - ma)) {
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	private int clamp(int code) {
+		return Math.max(minCurrent, Math.min(maxCurrent, code));
+	}
+
+	private void restartPeriod() {
+		sum[IR] = 0;
+		sum[RED] = 0;
+		clipped[IR] = 0;
+		clipped[RED] = 0;
+		periodSamples = 0;
+	}
+}
@@ -0,0 +1,105 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Result of a measurement session of {@link TiMAX30100_PulseOximeter}, times
+ * are sensor time derived from the sample count
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Measurement {
+
+	/**
+	 * Heart rate and SpO2 were stable
+	 */
+	public static final int STATUS_STABLE = 0;
+
+	/**
+	 * Timeout before the readings were stable, the last readings are reported
+	 */
+	public static final int STATUS_TIMEOUT = 1;
+
+	/**
+	 * The session was stopped before the readings were stable
+	 */
+	public static final int STATUS_STOPPED = 2;
+
+	private int status;
+	private double heartRate;
+	private int spO2;
+	private long timeToFirstReading;
+	private long onTime;
+	private double ledCharge;
+	private long sampleCount;
+
+	TiMAX30100_Measurement(int status, double heartRate, int spO2, long timeToFirstReading, long onTime,
+			double ledCharge, long sampleCount) {
+		this.status = status;
+		this.heartRate = heartRate;
+		this.spO2 = spO2;
+		this.timeToFirstReading = timeToFirstReading;
+		this.onTime = onTime;
+		this.ledCharge = ledCharge;
+		this.sampleCount = sampleCount;
+	}
+
+	/**
+	 * @return STATUS_xxx
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isStable() {
+		return status == STATUS_STABLE;
+	}
+
+	public double getHeartRate() {
+		return heartRate;
+	}
+
+	public int getSpO2() {
+		return spO2;
+	}
+
+	/**
+	 * Time in ms from the session start to the first heart rate and SpO2
+	 * pair, -1 if none
+	 * 
+	 * @return
+	 */
+	public long getTimeToFirstReading() {
+		return timeToFirstReading;
+	}
+
+	/**
+	 * Duration in ms of the session, the sensor was powered and sampling all
+	 * along. The LEDs themselves are only on during their pulses, see
+	 * getLedCharge.
+	 * 
+	 * @return
+	 */
+	public long getOnTime() {
+		return onTime;
+	}
+
+	/**
+	 * Energy proxy: sum of the nominal IR and Red LED currents integrated
+	 * over their pulses, one pulse of the configured width per sample, in
+	 * mA.s
+	 * 
+	 * @return
+	 */
+	public double getLedCharge() {
+		return ledCharge;
+	}
+
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	public String toString() {
+		return "status " + status + " heart " + (int) heartRate + " spO2 " + spO2 + " first " + timeToFirstReading
+				+ "ms on " + onTime + "ms LED " + Math.round(ledCharge * 10) / 10.0 + "mA.s";
+	}
+}
@@ -0,0 +1,186 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Hot path counters and latency histograms of TiMAX30100 and
+ * TiMAX30100_PulseOximeter. <br>
+ * Disabled unless an instance is passed to setMetrics, the instrumented code
+ * then only costs a null check. Recording, snapshot and reset do not
+ * allocate. In threaded mode the sensor and processing figures are updated
+ * by different threads, a snapshot may be off by the samples in flight.
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Metrics {
+
+	// 1us to ~16ms, log2 buckets of microseconds
+	private static final int LATENCY_BUCKETS = 16;
+
+	// sensor
+	long i2cTransactions;
+	long i2cBytes;
+	long drains;
+	long emptyPolls;
+	long samplesDrained;
+	long overflows;
+	long lostSamples;
+
+	// processing
+	long samplesProcessed;
+	long beatsDetected;
+	long ledCurrentAdjustments;
+	long spO2Computations;
+
+	final TiMAX30100_Histogram samplesPerDrain = TiMAX30100_Histogram.linear(TiMAX30100.MAX30100_FIFO_DEPTH + 2);
+	final TiMAX30100_Histogram readFifoMicros = TiMAX30100_Histogram.exponential(LATENCY_BUCKETS);
+	final TiMAX30100_Histogram checkSampleMicros = TiMAX30100_Histogram.exponential(LATENCY_BUCKETS);
+
+	public TiMAX30100_Metrics() {
+
+	}
+
+	/**
+	 * Number of I2C read and write transactions
+	 */
+	public long getI2CTransactions() {
+		return i2cTransactions;
+	}
+
+	/**
+	 * Number of register bytes read and written
+	 */
+	public long getI2CBytes() {
+		return i2cBytes;
+	}
+
+	/**
+	 * Number of FIFO drains
+	 */
+	public long getDrains() {
+		return drains;
+	}
+
+	/**
+	 * Number of FIFO drains which found no sample
+	 */
+	public long getEmptyPolls() {
+		return emptyPolls;
+	}
+
+	/**
+	 * Number of samples read from the FIFO
+	 */
+	public long getSamplesDrained() {
+		return samplesDrained;
+	}
+
+	/**
+	 * Number of drains which found the FIFO overflowed
+	 */
+	public long getOverflows() {
+		return overflows;
+	}
+
+	/**
+	 * Number of samples lost by FIFO overflows
+	 */
+	public long getLostSamples() {
+		return lostSamples;
+	}
+
+	/**
+	 * Number of samples through the processing chain
+	 */
+	public long getSamplesProcessed() {
+		return samplesProcessed;
+	}
+
+	public long getBeatsDetected() {
+		return beatsDetected;
+	}
+
+	public long getLedCurrentAdjustments() {
+		return ledCurrentAdjustments;
+	}
+
+	public long getSpO2Computations() {
+		return spO2Computations;
+	}
+
+	/**
+	 * Distribution of the number of samples per drain
+	 */
+	public TiMAX30100_Histogram getSamplesPerDrain() {
+		return samplesPerDrain;
+	}
+
+	/**
+	 * Distribution of the time in us spent draining the FIFO, I2C included
+	 */
+	public TiMAX30100_Histogram getReadFifoMicros() {
+		return readFifoMicros;
+	}
+
+	/**
+	 * Distribution of the time in us spent processing one drain
+	 */
+	public TiMAX30100_Histogram getCheckSampleMicros() {
+		return checkSampleMicros;
+	}
+
+	/**
+	 * Copy all figures into another instance
+	 * 
+	 * @param dst
+	 */
+	public void snapshotTo(TiMAX30100_Metrics dst) {
+		dst.i2cTransactions = i2cTransactions;
+		dst.i2cBytes = i2cBytes;
+		dst.drains = drains;
+		dst.emptyPolls = emptyPolls;
+		dst.samplesDrained = samplesDrained;
+		dst.overflows = overflows;
+		dst.lostSamples = lostSamples;
+		dst.samplesProcessed = samplesProcessed;
+		dst.beatsDetected = beatsDetected;
+		dst.ledCurrentAdjustments = ledCurrentAdjustments;
+		dst.spO2Computations = spO2Computations;
+
+		samplesPerDrain.copyTo(dst.samplesPerDrain);
+		readFifoMicros.copyTo(dst.readFifoMicros);
+		checkSampleMicros.copyTo(dst.checkSampleMicros);
+	}
+
+	public void reset() {
+		i2cTransactions = 0;
+		i2cBytes = 0;
+		drains = 0;
+		emptyPolls = 0;
+		samplesDrained = 0;
+		overflows = 0;
+		lostSamples = 0;
+		samplesProcessed = 0;
+		beatsDetected = 0;
+		ledCurrentAdjustments = 0;
+		spO2Computations = 0;
+
+		samplesPerDrain.reset();
+		readFifoMicros.reset();
+		checkSampleMicros.reset();
+	}
+
+	void recordDrain(int samples, int lost) {
+		drains++;
+		samplesDrained += samples;
+		samplesPerDrain.record(samples);
+
+		if (samples == 0) {
+			emptyPolls++;
+		}
+
+		if (lost > 0) {
+			overflows++;
+			lostSamples += lost;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Moving average over the last N samples, running sum over a ring
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_MovingAverage implements TiMAX30100_DspStage {
+
+	private double[] window;
+	private int pos = 0;
+	private int fill = 0;
+	private double sum = 0;
+
+	/**
+	 * @param length
+	 *            number of samples averaged
+	 */
+	public TiMAX30100_MovingAverage(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("length " + length);
+		}
+
+		window = new double[length];
+	}
+
+	public void process(double[] buffer, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (fill == window.length) {
+				sum -= window[pos];
+			} else {
+				fill++;
+			}
+
+			window[pos] = buffer[i];
+			sum += buffer[i];
+			if (++pos == window.length) {
+				pos = 0;
+			}
+
+			buffer[i] = sum / fill;
+		}
+	}
+
+	public void reset() {
+		pos = 0;
+		fill = 0;
+		sum = 0;
+	}
+}
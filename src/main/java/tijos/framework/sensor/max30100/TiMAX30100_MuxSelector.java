@@ -0,0 +1,21 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+/**
+ * I2C multiplexer channel switching hook used by {@link TiMAX30100_Hub} when
+ * several MAX30100 share the fixed 0x57 address on one bus
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_MuxSelector {
+
+	/**
+	 * Route the bus to a downstream channel
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	void select(int channel) throws IOException;
+}
@@ -0,0 +1,98 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * FIFO polling interval estimator, targets a FIFO about three-quarters full
+ * at each drain for the configured sample rate and adapts to overflows and
+ * drains below the target
+ * 
+ * @author TiJOS
+ *
+ */
+class TiMAX30100_PollScheduler {
+
+	// drain when the FIFO is about 3/4 full
+	private static final int TARGET_FILL = TiMAX30100.MAX30100_FIFO_DEPTH * 3 / 4;
+
+	// bounds of the adaptation factor applied to the nominal interval
+	private static final double MIN_SCALE = 0.125;
+	private static final double MAX_SCALE = 1.0;
+
+	// factor applied on overflow / on a drain below the target fill
+	private static final double SHRINK_FACTOR = 0.5;
+	private static final double GROW_FACTOR = 1.25;
+
+	private int sampleRateHz;
+	private double scale = MAX_SCALE;
+
+	private long tsLastDrain = 0;
+
+	TiMAX30100_PollScheduler(int sampleRateHz) {
+		setSampleRate(sampleRateHz);
+	}
+
+	void setSampleRate(int sampleRateHz) {
+		if (sampleRateHz <= 0) {
+			throw new IllegalArgumentException("sample rate " + sampleRateHz);
+		}
+
+		this.sampleRateHz = sampleRateHz;
+		this.scale = MAX_SCALE;
+	}
+
+	/**
+	 * Feed back the result of a drain
+	 * 
+	 * @param samples
+	 *            number of samples found in the FIFO
+	 * @param overflow
+	 *            whether the FIFO overflowed
+	 */
+	void onDrain(int samples, boolean overflow) {
+		if (overflow || samples >= TiMAX30100.MAX30100_FIFO_DEPTH) {
+			scale = Math.max(MIN_SCALE, scale * SHRINK_FACTOR);
+		} else if (samples < TARGET_FILL) {
+			// polled too often, e.g. after a transient overflow
+			scale = Math.min(MAX_SCALE, scale * GROW_FACTOR);
+		}
+
+		tsLastDrain = System.currentTimeMillis();
+	}
+
+	/**
+	 * Interval in ms between two drains
+	 * 
+	 * @return
+	 */
+	long getIntervalMs() {
+		long interval = (long) (TARGET_FILL * 1000 * scale / sampleRateHz);
+		return interval > 0 ? interval : 1;
+	}
+
+	/**
+	 * Number of samples expected in the FIFO given the time elapsed since the
+	 * last drain
+	 * 
+	 * @return
+	 */
+	int getExpectedSamples() {
+		long elapsed = System.currentTimeMillis() - tsLastDrain;
+		if (elapsed >= (long) TiMAX30100.MAX30100_FIFO_DEPTH * 1000 / sampleRateHz) {
+			return TiMAX30100.MAX30100_FIFO_DEPTH;
+		}
+
+		return (int) (elapsed * sampleRateHz / 1000);
+	}
+
+	/**
+	 * Time in ms to wait before the FIFO is expected to hold the given number
+	 * of samples, counted from the last drain
+	 * 
+	 * @param samples
+	 * @return
+	 */
+	long getDelayForSamples(int samples) {
+		long due = tsLastDrain + (long) samples * 1000 / sampleRateHz;
+		long delay = due - System.currentTimeMillis();
+		return delay > 0 ? delay : 0;
+	}
+}
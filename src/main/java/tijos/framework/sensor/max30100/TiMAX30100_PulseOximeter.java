@@ -5,55 +5,93 @@ import java.io.IOException;
 import tijos.framework.devicecenter.TiI2CMaster;
 import tijos.framework.util.logging.Logger;
 
-//http://www.schwietering.com/jayduino/filtuino/
-//Low pass butterworth filter order=1 alpha1=0.1
-//Fs=100Hz, Fc=6Hz
-class FilterBuLp1 {
-	private double[] v = new double[2];
+public class TiMAX30100_PulseOximeter {
 
-	public FilterBuLp1() {
-		v[0] = 0.0;
-	}
+	/**
+	 * Gaps in the sample stream (FIFO overflows, dropped samples) are ignored
+	 */
+	public static final int GAP_POLICY_IGNORE = 0;
 
-	public double step(double x) // class II
-	{
-		v[0] = v[1];
-		v[1] = (2.452372752527856026e-1 * x) + (0.50952544949442879485 * v[0]);
-		return (v[0] + v[1]);
-	}
-};
+	/**
+	 * The filters, beat detector and SpO2 calculator are reset after a gap,
+	 * onSignalLost is called if a heart rate was being reported
+	 */
+	public static final int GAP_POLICY_RESET = 1;
 
-// http://sam-koblenski.blogspot.de/2015/11/everyday-dsp-for-programmers-dc-and.html
-class DCRemover {
-	double alpha = 0;
-	double dcw = 0;
+	/**
+	 * Lost samples are replaced by a linear interpolation, gaps longer than
+	 * MAX_INTERPOLATED_GAP_MS reset the processing
+	 */
+	public static final int GAP_POLICY_INTERPOLATE = 2;
 
-	public DCRemover(double alpha_) {
-		this.alpha = alpha_;
-		this.dcw = 0;
-	}
+	/**
+	 * Longest gap bridged by GAP_POLICY_INTERPOLATE
+	 */
+	public static final int MAX_INTERPOLATED_GAP_MS = 200;
 
-	public double step(double x) {
-		double olddcw = dcw;
-		dcw = (double) x + alpha * dcw;
+	/**
+	 * Default length of the SpO2 sliding window
+	 */
+	public static final int DEFAULT_SPO2_WINDOW_MS = 3000;
 
-		return dcw - olddcw;
-	}
+	/**
+	 * Longest SpO2 sliding window, the window is held in memory
+	 */
+	public static final int MAX_SPO2_WINDOW_MS = 30000;
 
-	public double getDCW() {
-		return dcw;
-	}
+	/**
+	 * Default SpO2 publishing cadence, every 3 beats
+	 */
+	public static final int DEFAULT_SPO2_UPDATE_BEATS = 3;
 
-}
+	/**
+	 * The LED currents are left as set
+	 */
+	public static final int CURRENT_CONTROL_NONE = 0;
 
-public class TiMAX30100_PulseOximeter {
+	/**
+	 * Legacy follower, the red LED current is stepped to get a DC level
+	 * comparable to the IR one
+	 */
+	public static final int CURRENT_CONTROL_FOLLOWER = 1;
+
+	/**
+	 * Both LED currents are driven by TiMAX30100_LedAgc
+	 */
+	public static final int CURRENT_CONTROL_AGC = 2;
+
+	/**
+	 * Default measurement stability: 5 beats within 5 bpm and 2% SpO2
+	 */
+	public static final int DEFAULT_STABLE_BEATS = 5;
+	public static final double DEFAULT_HEART_RATE_TOLERANCE = 5;
+	public static final int DEFAULT_SPO2_TOLERANCE = 2;
+
+	/**
+	 * Default signal quality window
+	 */
+	public static final int DEFAULT_SIGNAL_QUALITY_WINDOW_MS = 1000;
+
+	/**
+	 * Lowest rate the processing may run at after decimation
+	 */
+	public static final int MIN_PROCESSING_RATE = 50;
+
+	/**
+	 * Corner of the low pass filter of the beat detector input
+	 */
+	public static final double PULSE_FILTER_CORNER_HZ = 10;
 
 	private static final int CURRENT_ADJUSTMENT_PERIOD_MS = 500;
 
+	// raw DC level difference stepping the red LED current, the historical
+	// 70000 filter state units at 100Hz
+	private static final int CURRENT_BIAS_THRESHOLD = 3500;
+
 	TiMAX30100 hrm;
 
-	DCRemover irDCRemover;
-	DCRemover redDCRemover;
+	TiMAX30100_DcRemover irDCRemover = TiMAX30100_DspChain.dcRemover(DC_REMOVER_ALPHA);
+	TiMAX30100_DcRemover redDCRemover = TiMAX30100_DspChain.dcRemover(DC_REMOVER_ALPHA);
 	PulseOximeterState state = PulseOximeterState.PULSEOXIMETER_STATE_INIT;
 
 	long tsFirstBeatDetected = 0;
@@ -63,43 +101,431 @@ public class TiMAX30100_PulseOximeter {
 
 	TiMAX30100_BeatDetector beatDetector = new TiMAX30100_BeatDetector();
 
-	FilterBuLp1 lpf = new FilterBuLp1();
+	TiMAX30100_Biquad lpf = TiMAX30100_DspChain.firstOrderLowPass(
+			TiMAX30100_BeatDetector.BEATDETECTOR_DEFAULT_SAMPLE_RATE, PULSE_FILTER_CORNER_HZ);
 	int redLedCurrentIndex = TiMAX30100.MAX30100_LED_CURR_27_1MA;
 	int irLedCurrent = TiMAX30100.MAX30100_LED_CURR_50MA;
 
 	TiMAX30100_SpO2Calculator spO2calculator = new TiMAX30100_SpO2Calculator();
 
+	// one FIFO drain worth of raw samples
+	private int[] rawIRBuffer = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+	private int[] rawRedBuffer = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+	private int[] rawLostBuffer = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+
+	private int sampleRate = TiMAX30100_BeatDetector.BEATDETECTOR_DEFAULT_SAMPLE_RATE;
+	private int samplingRate = TiMAX30100.MAX30100_SAMPRATE_100HZ;
+
+	private TiMAX30100_Metrics metrics;
+
+	private TiMAX30100_PulseOximeterListener listener;
+	private int lastReportedSpO2 = 0;
+
+	// gap handling
+	private int gapPolicy = GAP_POLICY_INTERPOLATE;
+	private int lastRawIR = -1;
+	private int lastRawRed = -1;
+	private long gapCount = 0;
+	private long gapSampleCount = 0;
+
+	// at 100Hz, scaled to keep the time constant at other rates
 	private static final double DC_REMOVER_ALPHA = 0.95;
 
+	// IR and Red DC removal, then low pass of the mirrored IR AC for the beat
+	// detector
+	private TiMAX30100_DspChain irChain = new TiMAX30100_DspChain().add(irDCRemover);
+	private TiMAX30100_DspChain redChain = new TiMAX30100_DspChain().add(redDCRemover);
+	private TiMAX30100_DspChain pulseChain = new TiMAX30100_DspChain().add(lpf);
+
+	// samples are filtered by blocks
+	private static final int BLOCK_SIZE = TiMAX30100.MAX30100_FIFO_DEPTH;
+	private double[] irBlock = new double[BLOCK_SIZE];
+	private double[] redBlock = new double[BLOCK_SIZE];
+	private double[] pulseBlock = new double[BLOCK_SIZE];
+	private double[] irRawBlock = new double[BLOCK_SIZE];
+	private double[] redRawBlock = new double[BLOCK_SIZE];
+	private int blockFill = 0;
+
+	// optional decimation ahead of the blocks
+	private TiMAX30100_Decimator irDecimator;
+	private TiMAX30100_Decimator redDecimator;
+	private int[] decimatedIR = new int[BLOCK_SIZE];
+	private int[] decimatedRed = new int[BLOCK_SIZE];
+	private int decimation = 1;
+	private int processingRate = TiMAX30100_BeatDetector.BEATDETECTOR_DEFAULT_SAMPLE_RATE;
+
+	// measurement session
+	private boolean measuring = false;
+	private long measurementTimeoutMs = 0;
+	private long sessionSamples = 0;
+	private long sessionProcessed = 0;
+	private long firstReadingProcessed = -1;
+	private double sessionLedCharge = 0;
+	private TiMAX30100_Measurement measurement;
+
+	// heart rate and SpO2 of the last beats of the session
+	private double[] beatRates = new double[DEFAULT_STABLE_BEATS];
+	private int[] beatSpO2 = new int[DEFAULT_STABLE_BEATS];
+	private int beatPos = 0;
+	private int beatFill = 0;
+	private double heartRateTolerance = DEFAULT_HEART_RATE_TOLERANCE;
+	private int spO2Tolerance = DEFAULT_SPO2_TOLERANCE;
+
+	private boolean temperatureCompensation = false;
+
+	// LED current control
+	private int currentControl = CURRENT_CONTROL_AGC;
+	private TiMAX30100_LedAgc agc = new TiMAX30100_LedAgc();
+
+	// signal quality gating of the beats and SpO2 samples
+	private TiMAX30100_SignalQuality signalQuality = new TiMAX30100_SignalQuality();
+	private boolean qualityGating = true;
+	private int spO2SamplesInWindow = 0;
+	private long rejectedWindows = 0;
+
+	private int[] gapIR = new int[1];
+	private int[] gapRed = new int[1];
+
+	// SpO2 window and publishing cadence, in ms so they follow the sample rate
+	private int spO2WindowMs = DEFAULT_SPO2_WINDOW_MS;
+	private int signalQualityWindowMs = DEFAULT_SIGNAL_QUALITY_WINDOW_MS;
+	private int spO2UpdateBeats = DEFAULT_SPO2_UPDATE_BEATS;
+	private int spO2UpdateMs = 0;
+
+	// threaded mode
+	private TiMAX30100_SpscRing sampleRing;
+	private Thread acquisitionThread;
+	private Thread processingThread;
+	private boolean initialized = false;
+	private volatile boolean threadsRunning = false;
+	private volatile boolean ledCurrentPending = false;
+	private volatile long acquisitionErrors = 0;
+	private volatile IOException lastAcquisitionError;
+	private volatile long processingErrors = 0;
+	private volatile RuntimeException lastProcessingError;
+
 	enum PulseOximeterState {
 		PULSEOXIMETER_STATE_INIT, PULSEOXIMETER_STATE_IDLE, PULSEOXIMETER_STATE_DETECTING
 	};
 
 	public TiMAX30100_PulseOximeter(TiI2CMaster i2c) {
-		this.hrm = new TiMAX30100(i2c);
+		this(new TiMAX30100(i2c));
+	}
+
+	/**
+	 * Initialize with an I2C bus implementation such as TiMAX30100_Simulator
+	 * 
+	 * @param bus
+	 */
+	public TiMAX30100_PulseOximeter(TiMAX30100_I2CBus bus) {
+		this(new TiMAX30100(bus));
+	}
+
+	/**
+	 * Initialize with an existing sensor instance
+	 * 
+	 * @param sensor
+	 */
+	public TiMAX30100_PulseOximeter(TiMAX30100 sensor) {
+		this.hrm = sensor;
+	}
+
+	/**
+	 * Offline instance without sensor, samples recorded at the given rate are
+	 * fed through process. getSamplingRate reports the sensor setting closest
+	 * to that rate.
+	 * 
+	 * @param sampleRate
+	 *            sample rate in Hz of the recorded samples
+	 */
+	public TiMAX30100_PulseOximeter(int sampleRate) {
+		this.samplingRate = closestSamplingRate(sampleRate);
+		resetProcessing(sampleRate);
 	}
 
 	public void initialize() throws IOException {
+		checkNotThreaded();
 
 		hrm.initialize();
 
-		hrm.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR);
-		hrm.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
-		hrm.resetFifo();
+		applySensorConfig();
 
-		irDCRemover = new DCRemover(DC_REMOVER_ALPHA);
-		redDCRemover = new DCRemover(DC_REMOVER_ALPHA);
+		resetProcessing(TiMAX30100.getSamplingRateHz(hrm.getSamplingRate()));
+		resetCurrentControl();
 
-		state = PulseOximeterState.PULSEOXIMETER_STATE_IDLE;
+		initialized = true;
+	}
+
+	/**
+	 * Change the sampling rate of the sensor and reconfigure the processing
+	 * for it: low pass coefficients, beat detector timing, DC remover time
+	 * constant and SpO2 window. The LED pulse width is shortened if the rate
+	 * does not permit 1600us. The processing restarts.
+	 * 
+	 * @param samplingRate
+	 *            MAX30100_SAMPRATE_xxx
+	 * @throws IOException
+	 */
+	public void setSamplingRate(int samplingRate) throws IOException {
+		if (samplingRate < TiMAX30100.MAX30100_SAMPRATE_50HZ || samplingRate > TiMAX30100.MAX30100_SAMPRATE_1000HZ) {
+			throw new IllegalArgumentException("sampling rate " + samplingRate);
+		}
+
+		checkNotThreaded();
+
+		if (TiMAX30100.getSamplingRateHz(samplingRate) / decimation < MIN_PROCESSING_RATE) {
+			throw new IllegalArgumentException("sampling rate " + samplingRate + " with decimation " + decimation);
+		}
+
+		this.samplingRate = samplingRate;
+
+		if (hrm != null) {
+			applySensorConfig();
+		}
+
+		resetProcessing(TiMAX30100.getSamplingRateHz(samplingRate));
+		resetCurrentControl();
+	}
+
+	/**
+	 * @return MAX30100_SAMPRATE_xxx
+	 */
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * Sample at the sensor rate but run the filters, beat detector and SpO2
+	 * calculator at sensor rate / factor, after a CIC decimator. The
+	 * processing restarts.
+	 * 
+	 * @param factor
+	 *            1 to disable, the processing rate must stay at or above
+	 *            MIN_PROCESSING_RATE
+	 */
+	public void setDecimation(int factor) {
+		if (factor < 1 || sampleRate / factor < MIN_PROCESSING_RATE) {
+			throw new IllegalArgumentException("decimation " + factor + " at " + sampleRate + "Hz");
+		}
+
+		checkNotThreaded();
+
+		this.decimation = factor;
+		if (factor == 1) {
+			irDecimator = null;
+			redDecimator = null;
+		} else {
+			irDecimator = new TiMAX30100_Decimator(factor);
+			redDecimator = new TiMAX30100_Decimator(factor);
+		}
+
+		resetProcessing(sampleRate);
+	}
+
+	public int getDecimation() {
+		return decimation;
+	}
+
+	/**
+	 * Rate in Hz of the filters, beat detector and SpO2 calculator
+	 * 
+	 * @return
+	 */
+	public int getProcessingRate() {
+		return processingRate;
+	}
+
+	private static int closestSamplingRate(int hz) {
+		int closest = TiMAX30100.MAX30100_SAMPRATE_50HZ;
+		int distance = Math.abs(TiMAX30100.getSamplingRateHz(closest) - hz);
+		for (int rate = closest + 1; rate <= TiMAX30100.MAX30100_SAMPRATE_1000HZ; rate++) {
+			int d = Math.abs(TiMAX30100.getSamplingRateHz(rate) - hz);
+			if (d < distance) {
+				closest = rate;
+				distance = d;
+			}
+		}
+		return closest;
+	}
+
+	private void applySensorConfig() throws IOException {
+		int pulseWidth = Math.min(TiMAX30100.MAX30100_SPC_PW_1600US_16BITS,
+				TiMAX30100_SensorConfig.getMaxPulseWidth(TiMAX30100.MAX30100_MODE_SPO2_HR, samplingRate));
+
+		hrm.apply(new TiMAX30100_SensorConfig.Builder().setMode(TiMAX30100.MAX30100_MODE_SPO2_HR)
+				.setSamplingRate(samplingRate).setLedsPulseWidth(pulseWidth)
+				.setLedsCurrent(irLedCurrent, redLedCurrentIndex).build());
 	}
 
 	public void update() throws IOException {
-		int sampleNum = hrm.update();
+		checkNotThreaded();
+
+		int sampleNum = hrm.readFifoSamples(rawIRBuffer, rawRedBuffer, rawLostBuffer, 0, rawIRBuffer.length);
 
 		if (sampleNum > 0) {
-			checkSample(sampleNum);
-			checkCurrentBias();
+			if (measuring) {
+				sessionSamples += sampleNum;
+				// each LED is on for one pulse per sample
+				sessionLedCharge += (TiMAX30100.getLedCurrentMa(irLedCurrent)
+						+ TiMAX30100.getLedCurrentMa(redLedCurrentIndex)) * sampleNum
+						* TiMAX30100.getLedsPulseWidthUs(hrm.getLedsPulseWidth()) / 1000000;
+			}
+
+			checkTemperature();
+			checkSample(rawIRBuffer, rawRedBuffer, rawLostBuffer, 0, sampleNum);
+			checkCurrentControl(rawIRBuffer, rawRedBuffer, 0, sampleNum);
+
+			if (measuring) {
+				checkMeasurement();
+			}
+		}
+	}
+
+	/**
+	 * When a measurement session is stable
+	 * 
+	 * @param beats
+	 *            number of consecutive beats compared
+	 * @param heartRateTolerance
+	 *            largest heart rate spread over these beats, in bpm
+	 * @param spO2Tolerance
+	 *            largest SpO2 spread over these beats, in %
+	 */
+	public void setMeasurementStability(int beats, double heartRateTolerance, int spO2Tolerance) {
+		if (beats < 1 || heartRateTolerance < 0 || spO2Tolerance < 0) {
+			throw new IllegalArgumentException("stability " + beats + "/" + heartRateTolerance + "/" + spO2Tolerance);
+		}
+
+		if (measuring) {
+			throw new IllegalStateException("measurement running");
+		}
+
+		beatRates = new double[beats];
+		beatSpO2 = new int[beats];
+		this.heartRateTolerance = heartRateTolerance;
+		this.spO2Tolerance = spO2Tolerance;
+	}
+
+	/**
+	 * Start a measurement session: resume the sensor, clear the FIFO and
+	 * restart the processing. Each update then runs the session until the
+	 * heart rate and SpO2 are stable or the timeout expires, the sensor is
+	 * then shut down and the result is available from getMeasurement.
+	 * 
+	 * @param timeoutMs
+	 *            longest session, in sensor time
+	 * @throws IOException
+	 */
+	public void startMeasurement(long timeoutMs) throws IOException {
+		if (hrm == null || threadsRunning) {
+			throw new IllegalStateException("measurement needs the polled mode");
+		}
+
+		if (timeoutMs <= 0) {
+			throw new IllegalArgumentException("timeout " + timeoutMs);
+		}
+
+		hrm.resume();
+		hrm.resetFifo();
+		resetProcessing(sampleRate);
+		resetCurrentControl();
+
+		measurementTimeoutMs = timeoutMs;
+		sessionSamples = 0;
+		sessionProcessed = 0;
+		firstReadingProcessed = -1;
+		sessionLedCharge = 0;
+		beatPos = 0;
+		beatFill = 0;
+		measuring = true;
+	}
+
+	/**
+	 * Stop the running session and shut the sensor down
+	 * 
+	 * @throws IOException
+	 */
+	public void stopMeasurement() throws IOException {
+		if (measuring) {
+			finishMeasurement(TiMAX30100_Measurement.STATUS_STOPPED);
+		}
+	}
+
+	public boolean isMeasuring() {
+		return measuring;
+	}
+
+	/**
+	 * Result of the last finished session
+	 * 
+	 * @return null if none
+	 */
+	public TiMAX30100_Measurement getMeasurement() {
+		return measurement;
+	}
+
+	/**
+	 * Run a whole measurement session on the calling thread
+	 * 
+	 * @param timeoutMs
+	 *            longest session
+	 * @return the session result
+	 * @throws IOException
+	 */
+	public TiMAX30100_Measurement measure(long timeoutMs) throws IOException {
+		startMeasurement(timeoutMs);
+
+		// guard in case the sensor time stops
+		long deadline = System.currentTimeMillis() + timeoutMs + 1000;
+		while (measuring) {
+			update();
+
+			if (measuring && System.currentTimeMillis() > deadline) {
+				finishMeasurement(TiMAX30100_Measurement.STATUS_TIMEOUT);
+			} else if (measuring && !sleep(Math.max(1, hrm.pollIntervalHint()))) {
+				finishMeasurement(TiMAX30100_Measurement.STATUS_STOPPED);
+			}
 		}
+
+		return measurement;
+	}
+
+	/**
+	 * Interrupt driven update, the sensor FIFO is only drained when the
+	 * almost-full interrupt is signalled by the source
+	 * 
+	 * @param source
+	 *            INT pin event source, null to disable the interrupt
+	 * @throws IOException
+	 */
+	public void setInterruptSource(TiMAX30100_InterruptSource source) throws IOException {
+		checkNotThreaded();
+
+		hrm.setInterruptSource(source);
+		hrm.setInterruptsEnabled(source != null ? TiMAX30100.MAX30100_INT_A_FULL : 0);
+	}
+
+	/**
+	 * Wait for the sensor interrupt and process the drained samples, requires
+	 * setInterruptSource
+	 * 
+	 * @param timeoutMs
+	 *            maximum time to wait in ms, 0 to wait forever
+	 * @throws IOException
+	 */
+	public void update(long timeoutMs) throws IOException {
+		if (hrm.waitForFifoInterrupt(timeoutMs)) {
+			update();
+		}
+	}
+
+	/**
+	 * Recommended interval in ms between two update calls
+	 * 
+	 * @return
+	 */
+	public long pollIntervalHint() {
+		return hrm.pollIntervalHint();
 	}
 
 	public double getHeartRate() {
@@ -110,48 +536,910 @@ public class TiMAX30100_PulseOximeter {
 		return spO2calculator.getSpO2();
 	}
 
+	/**
+	 * Signal quality index of the last window
+	 * 
+	 * @return 0 (unusable) to 100
+	 */
+	public int getSignalQuality() {
+		return signalQuality.getScore();
+	}
+
 	public int getRedLedCurrentBias() {
 		return redLedCurrentIndex;
 	}
 
+	public int getIRLedCurrent() {
+		return irLedCurrent;
+	}
+
+	/**
+	 * Set the IR LED current, with CURRENT_CONTROL_AGC it is the new starting
+	 * point of the control. Not permitted while threaded, the control runs
+	 * in the processing thread.
+	 * 
+	 * @param irLedNewCurrent
+	 *            MAX30100_LED_CURR_xxx
+	 * @throws IOException
+	 */
 	public void setIRLedCurrent(int irLedNewCurrent) throws IOException {
+		checkNotThreaded();
+
 		irLedCurrent = irLedNewCurrent;
-		hrm.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+		applyLedsCurrent();
+		agc.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+	}
+
+	/**
+	 * How the LED currents are adjusted while running, not permitted while
+	 * threaded
+	 * 
+	 * @param control
+	 *            CURRENT_CONTROL_NONE, CURRENT_CONTROL_FOLLOWER or
+	 *            CURRENT_CONTROL_AGC (default)
+	 */
+	public void setCurrentControl(int control) {
+		if (control < CURRENT_CONTROL_NONE || control > CURRENT_CONTROL_AGC) {
+			throw new IllegalArgumentException("current control " + control);
+		}
+
+		checkNotThreaded();
+
+		this.currentControl = control;
+		resetCurrentControl();
+	}
+
+	public int getCurrentControl() {
+		return currentControl;
+	}
+
+	/**
+	 * The automatic LED current control, to set its targets and limits
+	 * before the threaded mode is started
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_LedAgc getLedAgc() {
+		return agc;
+	}
+
+	/**
+	 * The signal quality estimator, to set its thresholds and read the
+	 * details of the last window. Its window length is set with
+	 * setSignalQualityWindow, it is derived again at each processing reset.
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_SignalQuality getSignalQualityEstimator() {
+		return signalQuality;
+	}
+
+	/**
+	 * Length of the signal quality windows, kept across sampling rate
+	 * changes and processing resets. Restarts the estimator.
+	 * 
+	 * @param windowMs
+	 *            window length in ms, default DEFAULT_SIGNAL_QUALITY_WINDOW_MS
+	 */
+	public void setSignalQualityWindow(int windowMs) {
+		if ((long) windowMs * processingRate / 1000 < 2) {
+			throw new IllegalArgumentException("signal quality window " + windowMs);
+		}
+
+		checkNotThreaded();
+
+		this.signalQualityWindowMs = windowMs;
+		signalQuality.setWindowLength(msToSamples(windowMs));
+	}
+
+	public int getSignalQualityWindow() {
+		return signalQualityWindowMs;
+	}
+
+	/**
+	 * Ignore the beats and keep the SpO2 samples out of the window while the
+	 * signal quality is too low, default is enabled. Once no beat is
+	 * accepted for a while the signal is reported lost.
+	 * 
+	 * @param enable
+	 */
+	public void setSignalQualityGating(boolean enable) {
+		this.qualityGating = enable;
+	}
+
+	/**
+	 * Number of signal quality windows rejected
+	 * 
+	 * @return
+	 */
+	public long getRejectedWindows() {
+		return rejectedWindows;
+	}
+
+	/**
+	 * How gaps in the sample stream are handled
+	 * 
+	 * @param policy
+	 *            GAP_POLICY_IGNORE, GAP_POLICY_RESET or GAP_POLICY_INTERPOLATE
+	 */
+	public void setGapPolicy(int policy) {
+		if (policy < GAP_POLICY_IGNORE || policy > GAP_POLICY_INTERPOLATE) {
+			throw new IllegalArgumentException("gap policy " + policy);
+		}
+
+		this.gapPolicy = policy;
+	}
+
+	/**
+	 * Number of gaps seen in the sample stream
+	 * 
+	 * @return
+	 */
+	public long getGapCount() {
+		return gapCount;
+	}
+
+	/**
+	 * Total number of samples missing from the sample stream
+	 * 
+	 * @return
+	 */
+	public long getGapSampleCount() {
+		return gapSampleCount;
+	}
+
+	/**
+	 * Length of the sliding window the SpO2 is computed on, clears the SpO2
+	 * 
+	 * @param windowMs
+	 *            window length in ms, up to MAX_SPO2_WINDOW_MS, default
+	 *            DEFAULT_SPO2_WINDOW_MS
+	 */
+	public void setSpO2Window(int windowMs) {
+		checkNotThreaded();
+
+		if (windowMs > MAX_SPO2_WINDOW_MS || (long) windowMs * processingRate / 1000 <= 0) {
+			throw new IllegalArgumentException("SpO2 window " + windowMs);
+		}
+
+		this.spO2WindowMs = windowMs;
+		configureSpO2Calculator();
+	}
+
+	/**
+	 * SpO2 publishing cadence, a new value is computed when either condition
+	 * is met
+	 * 
+	 * @param beats
+	 *            every N beats, 0 to disable
+	 * @param periodMs
+	 *            every N ms, 0 to disable
+	 */
+	public void setSpO2UpdateInterval(int beats, int periodMs) {
+		checkNotThreaded();
+
+		spO2calculator.setUpdateInterval(beats, msToSamples(periodMs));
+
+		this.spO2UpdateBeats = beats;
+		this.spO2UpdateMs = periodMs;
+	}
+
+	/**
+	 * IR processing chain, DC removal by default, stages can be appended. Its
+	 * output feeds the SpO2 calculator and, mirrored, the pulse chain
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_DspChain getIRChain() {
+		return irChain;
+	}
+
+	/**
+	 * Red processing chain, DC removal by default, stages can be appended
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_DspChain getRedChain() {
+		return redChain;
+	}
+
+	/**
+	 * Beat detector input chain, low pass by default, stages can be appended
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_DspChain getPulseChain() {
+		return pulseChain;
+	}
+
+	/**
+	 * Per device calibration of the SpO2, can be replaced at runtime
+	 * 
+	 * @param curve
+	 *            TiMAX30100_SpO2LutCurve or TiMAX30100_SpO2QuadraticCurve
+	 */
+	public void setSpO2Curve(TiMAX30100_SpO2Curve curve) {
+		spO2calculator.setCurve(curve);
+	}
+
+	/**
+	 * Compensate the SpO2 for the LED wavelength drift with the die
+	 * temperature, read in the background by the sensor
+	 * 
+	 * @param coefficient
+	 *            relative R ratio change per degree Celsius, 0 to disable
+	 * @param reference
+	 *            temperature of the calibration, degree Celsius
+	 * @param intervalMs
+	 *            time between two temperature readings
+	 */
+	public void setTemperatureCompensation(double coefficient, double reference, long intervalMs) {
+		checkNotThreaded();
+
+		spO2calculator.setTemperatureCompensation(coefficient, reference);
+		temperatureCompensation = coefficient != 0;
+
+		if (hrm != null) {
+			hrm.setTemperatureInterval(temperatureCompensation ? intervalMs : 0);
+		}
+	}
+
+	/**
+	 * Compute the SpO2 ratio with integer logarithms instead of Math.log, the
+	 * rest of the processing stays floating point
+	 * 
+	 * @param enable
+	 */
+	public void setSpO2FixedPoint(boolean enable) {
+		spO2calculator.setFixedPoint(enable);
+	}
+
+	/**
+	 * Receive beat, heart rate, SpO2 and signal lost events instead of polling
+	 * the getters
+	 * 
+	 * @param listener
+	 *            null to remove
+	 */
+	public void setListener(TiMAX30100_PulseOximeterListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Enable the hot path instrumentation of this instance and of its sensor
+	 * 
+	 * @param metrics
+	 *            instance receiving the figures, null to disable
+	 */
+	public void setMetrics(TiMAX30100_Metrics metrics) {
+		this.metrics = metrics;
+		if (hrm != null) {
+			hrm.setMetrics(metrics);
+		}
+	}
+
+	public TiMAX30100_Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * The sensor driven by this instance, null for an offline instance
+	 * 
+	 * @return
+	 */
+	public TiMAX30100 getSensor() {
+		return hrm;
 	}
 
 	public void shutdown() throws IOException {
+		checkNotThreaded();
+
 		hrm.shutdown();
 	}
 
 	public void resume() throws IOException {
+		checkNotThreaded();
+
 		hrm.resume();
 	}
 
-	private void checkSample(int sampleNum) {
-		int rawIRValue, rawRedValue;
+	/**
+	 * Start the threaded mode: an acquisition thread only drains the sensor
+	 * FIFO into a lock-free ring, a processing thread runs the signal
+	 * processing and the LED current follower. A slow consumer then no longer
+	 * delays the FIFO drains; when it falls too far behind, samples are
+	 * dropped from the ring and counted instead of overflowing the FIFO. <br>
+	 * The bus is then only used by the acquisition thread: update,
+	 * initialize, shutdown, resume and the other calls which would access it
+	 * throw IllegalStateException while the threads are running. Interrupting
+	 * either thread ends the threaded mode, stopThreaded must still be called
+	 * before it is started again.
+	 * 
+	 * @param ringCapacity
+	 *            number of samples buffered between the two threads
+	 */
+	public synchronized void startThreaded(int ringCapacity) {
+		if (hrm == null) {
+			throw new IllegalStateException("threaded mode needs a sensor");
+		}
+
+		if (!initialized) {
+			throw new IllegalStateException("not initialized");
+		}
+
+		if (threadsRunning) {
+			return;
+		}
+
+		if (acquisitionThread != null || processingThread != null) {
+			throw new IllegalStateException("threaded mode ended, stopThreaded first");
+		}
+
+		sampleRing = new TiMAX30100_SpscRing(ringCapacity);
+		threadsRunning = true;
+
+		acquisitionThread = new Thread() {
+			public void run() {
+				runAcquisition();
+			}
+		};
+
+		processingThread = new Thread() {
+			public void run() {
+				runProcessing();
+			}
+		};
+
+		acquisitionThread.start();
+		processingThread.start();
+	}
+
+	/**
+	 * Stop the threaded mode and wait for both threads to exit, also when
+	 * they already ended on an interrupt
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void stopThreaded() throws InterruptedException {
+		threadsRunning = false;
+
+		if (acquisitionThread != null) {
+			acquisitionThread.join();
+			acquisitionThread = null;
+		}
+
+		if (processingThread != null) {
+			processingThread.join();
+			processingThread = null;
+		}
+	}
+
+	public boolean isThreaded() {
+		return threadsRunning;
+	}
+
+	/**
+	 * Ring between the acquisition and processing threads, holds the
+	 * backpressure and drop statistics, null if the threaded mode was never
+	 * started
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_SpscRing getSampleRing() {
+		return sampleRing;
+	}
+
+	/**
+	 * Number of I2C errors in the acquisition thread
+	 * 
+	 * @return
+	 */
+	public long getAcquisitionErrors() {
+		return acquisitionErrors;
+	}
+
+	/**
+	 * Last I2C error in the acquisition thread
+	 * 
+	 * @return
+	 */
+	public IOException getLastAcquisitionError() {
+		return lastAcquisitionError;
+	}
+
+	/**
+	 * Number of errors in the processing thread, the samples being processed
+	 * are then lost
+	 * 
+	 * @return
+	 */
+	public long getProcessingErrors() {
+		return processingErrors;
+	}
+
+	/**
+	 * Last error in the processing thread
+	 * 
+	 * @return
+	 */
+	public RuntimeException getLastProcessingError() {
+		return lastProcessingError;
+	}
+
+	// the gap preceding a sample travels through the ring above the 16 bits
+	// IR value
+	private static final int RING_LOST_SHIFT = 16;
+	private static final int RING_MAX_LOST = 0x7FFF;
+
+	private void runAcquisition() {
+		int[] ir = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] red = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] lost = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int dropped = 0;
+
+		while (threadsRunning) {
+			try {
+				// LED changes requested by the processing thread, the bus is
+				// only used from this thread
+				if (ledCurrentPending) {
+					ledCurrentPending = false;
+					hrm.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+				}
+
+				int count = hrm.readFifoSamples(ir, red, lost, 0, ir.length);
+				if (count > 0) {
+					// samples dropped by the ring are a gap before the next
+					// accepted one
+					lost[0] += dropped;
+					for (int i = 0; i < count; i++) {
+						ir[i] |= Math.min(lost[i], RING_MAX_LOST) << RING_LOST_SHIFT;
+					}
+
+					int accepted = sampleRing.offer(ir, red, 0, count);
+
+					// the rejected samples and the gaps before them are
+					// carried, including the previous carry in lost[0] when
+					// nothing was accepted
+					dropped = count - accepted;
+					for (int i = accepted; i < count; i++) {
+						dropped += lost[i];
+					}
+				}
+			} catch (IOException e) {
+				acquisitionErrors++;
+				lastAcquisitionError = e;
+			}
+
+			if (!sleep(hrm.pollIntervalHint())) {
+				threadsRunning = false;
+			}
+		}
+	}
+
+	private void runProcessing() {
+		int[] ir = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] red = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] lost = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+
+		while (threadsRunning) {
+			int count = sampleRing.poll(ir, red, 0, ir.length);
+			if (count == 0) {
+				if (!sleep(Math.max(1, hrm.pollIntervalHint() / 2))) {
+					threadsRunning = false;
+				}
+				continue;
+			}
+
+			for (int i = 0; i < count; i++) {
+				lost[i] = ir[i] >>> RING_LOST_SHIFT;
+				ir[i] &= 0xFFFF;
+			}
+
+			try {
+				checkTemperature();
+				checkSample(ir, red, lost, 0, count);
+				checkCurrentControl(ir, red, 0, count);
+			} catch (IOException e) {
+				// not reached, the LED current is written by the acquisition
+				// thread
+			} catch (RuntimeException e) {
+				// keep the thread alive, e.g. on a listener failure
+				processingErrors++;
+				lastProcessingError = e;
+			}
+		}
+	}
+
+	/*
+	 * false if the thread was interrupted, the interrupt status is kept for
+	 * the caller
+	 */
+	private static boolean sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void checkNotThreaded() {
+		if (threadsRunning) {
+			throw new IllegalStateException("threaded mode is running");
+		}
+	}
+
+	private void applyLedsCurrent() throws IOException {
+		if (threadsRunning) {
+			ledCurrentPending = true;
+		} else {
+			hrm.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+		}
+	}
+
+	/**
+	 * Run raw samples through the DC remover, low pass filter, beat detector
+	 * and SpO2 calculator, used by update and for offline processing
+	 * 
+	 * @param rawIR
+	 *            raw IR values
+	 * @param rawRed
+	 *            raw Red values
+	 * @param off
+	 *            index of the first sample in both arrays
+	 * @param sampleNum
+	 *            number of samples
+	 */
+	public void process(int[] rawIR, int[] rawRed, int off, int sampleNum) {
+		checkSample(rawIR, rawRed, null, off, sampleNum);
+	}
+
+	/**
+	 * Same as process(rawIR, rawRed, off, sampleNum) for a stream with gaps
+	 * 
+	 * @param rawIR
+	 *            raw IR values
+	 * @param rawRed
+	 *            raw Red values
+	 * @param lost
+	 *            number of samples lost just before each sample
+	 * @param off
+	 *            index of the first sample in the arrays
+	 * @param sampleNum
+	 *            number of samples
+	 */
+	public void process(int[] rawIR, int[] rawRed, int[] lost, int off, int sampleNum) {
+		checkSample(rawIR, rawRed, lost, off, sampleNum);
+	}
+
+	private void resetProcessing(int sampleRate) {
+		this.sampleRate = sampleRate;
+		this.processingRate = Math.max(1, sampleRate / decimation);
+		lastReportedSpO2 = 0;
+		lastRawIR = -1;
+		lastRawRed = -1;
+
+		beatDetector = new TiMAX30100_BeatDetector(processingRate);
+		configureSpO2Calculator();
+		signalQuality.setWindowLength(Math.max(2, msToSamples(signalQualityWindowMs)));
+		spO2SamplesInWindow = 0;
+
+		blockFill = 0;
+		if (irDecimator != null) {
+			irDecimator.reset();
+			redDecimator.reset();
+		}
+
+		double alpha = Math.pow(DC_REMOVER_ALPHA,
+				(double) TiMAX30100_BeatDetector.BEATDETECTOR_DEFAULT_SAMPLE_RATE / processingRate);
+		irDCRemover.setAlpha(alpha);
+		redDCRemover.setAlpha(alpha);
+		lpf.setFirstOrderLowPass(processingRate, Math.min(PULSE_FILTER_CORNER_HZ, processingRate * 0.4));
+		irChain.reset();
+		redChain.reset();
+		pulseChain.reset();
+
+		state = PulseOximeterState.PULSEOXIMETER_STATE_IDLE;
+	}
+
+	private void configureSpO2Calculator() {
+		int windowLength = msToSamples(spO2WindowMs);
+		if (windowLength != spO2calculator.getWindowLength()) {
+			spO2calculator.setWindowLength(windowLength);
+		} else {
+			spO2calculator.reset();
+		}
 
-		// Dequeue all available samples, they're properly timed by the HRM
-		while (sampleNum-- > 0) {
+		spO2calculator.setUpdateInterval(spO2UpdateBeats, msToSamples(spO2UpdateMs));
+	}
 
-			rawIRValue = hrm.getIR();
-			rawRedValue = hrm.getRed();
+	private int msToSamples(int ms) {
+		if (ms <= 0) {
+			return 0;
+		}
 
-			double irACValue = irDCRemover.step(rawIRValue);
-			double redACValue = redDCRemover.step(rawRedValue);
+		return Math.max(1, (int) ((long) ms * processingRate / 1000));
+	}
 
-			// The signal fed to the beat detector is mirrored since the
-			// cleanest monotonic spike is below zero
-			double filteredPulseValue = lpf.step(-irACValue);
-			boolean beatDetected = beatDetector.addSample(filteredPulseValue);
+	private void checkSample(int[] rawIR, int[] rawRed, int[] lost, int off, int sampleNum) {
+		long start = metrics != null ? System.nanoTime() : 0;
 
-			if (beatDetector.getRate() > 0) {
-				state = PulseOximeterState.PULSEOXIMETER_STATE_DETECTING;
-				spO2calculator.update(irACValue, redACValue, beatDetected);
-			} else if (state == PulseOximeterState.PULSEOXIMETER_STATE_DETECTING) {
-				state = PulseOximeterState.PULSEOXIMETER_STATE_IDLE;
-				spO2calculator.reset();
+		// Process all drained samples, they're properly timed by the HRM
+		int segment = off;
+		if (lost != null) {
+			for (int i = off; i < off + sampleNum; i++) {
+				if (lost[i] > 0) {
+					addSamples(rawIR, rawRed, segment, i - segment);
+					segment = i;
+					checkGap(lost[i], rawIR[i], rawRed[i]);
+				}
 			}
 		}
+		addSamples(rawIR, rawRed, segment, off + sampleNum - segment);
+		flushBlock();
+
+		if (metrics != null) {
+			metrics.samplesProcessed += sampleNum;
+			metrics.checkSampleMicros.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	private void checkGap(int lost, int nextIR, int nextRed) {
+		gapCount++;
+		gapSampleCount += lost;
+
+		switch (gapPolicy) {
+		case GAP_POLICY_RESET:
+			resetAfterGap();
+			break;
+
+		case GAP_POLICY_INTERPOLATE:
+			if (lastRawIR < 0 || lost * 1000L / sampleRate > MAX_INTERPOLATED_GAP_MS) {
+				resetAfterGap();
+				break;
+			}
+
+			// keep the sample timing of the beat detector, bridge the gap
+			// linearly
+			int fromIR = lastRawIR;
+			int fromRed = lastRawRed;
+			for (int i = 1; i <= lost; i++) {
+				gapIR[0] = fromIR + (nextIR - fromIR) * i / (lost + 1);
+				gapRed[0] = fromRed + (nextRed - fromRed) * i / (lost + 1);
+				addSamples(gapIR, gapRed, 0, 1);
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * The readings are invalid after the reset, the listener is told as when
+	 * no beat is detected for a while
+	 */
+	private void resetAfterGap() {
+		flushBlock();
+
+		boolean detecting = state == PulseOximeterState.PULSEOXIMETER_STATE_DETECTING;
+		resetProcessing(sampleRate);
+
+		if (detecting && listener != null) {
+			listener.onSignalLost();
+		}
+	}
+
+	private void addSamples(int[] rawIR, int[] rawRed, int off, int len) {
+		if (len <= 0) {
+			return;
+		}
+
+		lastRawIR = rawIR[off + len - 1];
+		lastRawRed = rawRed[off + len - 1];
+
+		if (irDecimator == null) {
+			for (int i = off; i < off + len; i++) {
+				addSample(rawIR[i], rawRed[i]);
+			}
+			return;
+		}
+
+		// at most one block of decimated samples per pass
+		int maxChunk = BLOCK_SIZE * irDecimator.getFactor();
+		while (len > 0) {
+			int chunk = Math.min(len, maxChunk);
+			int n = irDecimator.process(rawIR, off, chunk, decimatedIR, 0);
+			redDecimator.process(rawRed, off, chunk, decimatedRed, 0);
+
+			for (int i = 0; i < n; i++) {
+				addSample(decimatedIR[i], decimatedRed[i]);
+			}
+
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	private void addSample(int rawIRValue, int rawRedValue) {
+		irBlock[blockFill] = rawIRValue;
+		redBlock[blockFill] = rawRedValue;
+		if (++blockFill == BLOCK_SIZE) {
+			flushBlock();
+		}
+	}
+
+	private void flushBlock() {
+		int n = blockFill;
+		if (n == 0) {
+			return;
+		}
+		blockFill = 0;
+
+		System.arraycopy(irBlock, 0, irRawBlock, 0, n);
+		System.arraycopy(redBlock, 0, redRawBlock, 0, n);
+
+		irChain.process(irBlock, 0, n);
+		redChain.process(redBlock, 0, n);
+
+		// The signal fed to the beat detector is mirrored since the
+		// cleanest monotonic spike is below zero
+		for (int i = 0; i < n; i++) {
+			pulseBlock[i] = -irBlock[i];
+		}
+		pulseChain.process(pulseBlock, 0, n);
+
+		for (int i = 0; i < n; i++) {
+			boolean windowEnd = signalQuality.addSample(irRawBlock[i], redRawBlock[i], irBlock[i], redBlock[i]);
+			checkSample(irBlock[i], redBlock[i], pulseBlock[i]);
+			if (windowEnd) {
+				checkQualityWindow();
+			}
+		}
+	}
+
+	private void checkQualityWindow() {
+		if (!signalQuality.isLastWindowAccepted()) {
+			rejectedWindows++;
+			// the window went bad after some of its samples were taken
+			if (qualityGating) {
+				spO2calculator.discard(spO2SamplesInWindow);
+			}
+		}
+
+		spO2SamplesInWindow = 0;
+	}
+
+	private void checkSample(double irACValue, double redACValue, double filteredPulseValue) {
+		boolean acceptable = !qualityGating || signalQuality.isAcceptable();
+		boolean beatDetected = beatDetector.addSample(filteredPulseValue, acceptable);
+
+		if (measuring) {
+			sessionProcessed++;
+			if (beatDetected) {
+				beatRates[beatPos] = beatDetector.getRate();
+				beatSpO2[beatPos] = spO2calculator.getSpO2();
+				beatPos = (beatPos + 1) % beatRates.length;
+				beatFill = Math.min(beatFill + 1, beatRates.length);
+			}
+			if (firstReadingProcessed < 0 && beatDetector.getRate() > 0 && spO2calculator.getSpO2() > 0) {
+				firstReadingProcessed = sessionProcessed;
+			}
+		}
+
+		if (beatDetected) {
+			if (metrics != null) {
+				metrics.beatsDetected++;
+			}
+
+			if (listener != null) {
+				listener.onBeatDetected(beatDetector.getTimestamp());
+				if (beatDetector.getRate() > 0) {
+					listener.onHeartRateUpdated(beatDetector.getRate());
+				}
+			}
+		}
+
+		if (beatDetector.getRate() > 0) {
+			state = PulseOximeterState.PULSEOXIMETER_STATE_DETECTING;
+
+			// corrupted samples are kept out of the SpO2 window
+			boolean spO2Computed = false;
+			if (acceptable) {
+				spO2SamplesInWindow++;
+				spO2Computed = spO2calculator.update(irACValue, redACValue, beatDetected);
+			}
+
+			if (spO2Computed) {
+				if (metrics != null) {
+					metrics.spO2Computations++;
+				}
+
+				if (listener != null && spO2calculator.getSpO2() != lastReportedSpO2) {
+					lastReportedSpO2 = spO2calculator.getSpO2();
+					listener.onSpO2Updated(lastReportedSpO2);
+				}
+			}
+		} else if (state == PulseOximeterState.PULSEOXIMETER_STATE_DETECTING) {
+			state = PulseOximeterState.PULSEOXIMETER_STATE_IDLE;
+			spO2calculator.reset();
+			lastReportedSpO2 = 0;
+
+			if (listener != null) {
+				listener.onSignalLost();
+			}
+		}
+	}
+
+	private void checkTemperature() {
+		if (temperatureCompensation && hrm.getTemperatureAge() >= 0) {
+			spO2calculator.setTemperature(hrm.getTemperature());
+		}
+	}
+
+	private void checkMeasurement() throws IOException {
+		if (isStable()) {
+			finishMeasurement(TiMAX30100_Measurement.STATUS_STABLE);
+		} else if (sessionSamples * 1000 / sampleRate >= measurementTimeoutMs) {
+			finishMeasurement(TiMAX30100_Measurement.STATUS_TIMEOUT);
+		}
+	}
+
+	private boolean isStable() {
+		if (beatFill < beatRates.length) {
+			return false;
+		}
+
+		double minRate = beatRates[0], maxRate = beatRates[0];
+		int minSpO2 = beatSpO2[0], maxSpO2 = beatSpO2[0];
+		for (int i = 1; i < beatFill; i++) {
+			minRate = Math.min(minRate, beatRates[i]);
+			maxRate = Math.max(maxRate, beatRates[i]);
+			minSpO2 = Math.min(minSpO2, beatSpO2[i]);
+			maxSpO2 = Math.max(maxSpO2, beatSpO2[i]);
+		}
+
+		return minRate > 0 && minSpO2 > 0 && maxRate - minRate <= heartRateTolerance
+				&& maxSpO2 - minSpO2 <= spO2Tolerance;
+	}
+
+	private void finishMeasurement(int status) throws IOException {
+		measuring = false;
+
+		long firstReading = firstReadingProcessed < 0 ? -1 : firstReadingProcessed * 1000 / processingRate;
+		measurement = new TiMAX30100_Measurement(status, getHeartRate(), getSpO2(), firstReading,
+				sessionSamples * 1000 / sampleRate, sessionLedCharge, sessionSamples);
+
+		hrm.shutdown();
+	}
+
+	private void resetCurrentControl() {
+		agc.setSampleRate(sampleRate);
+		agc.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+		agc.reset();
+	}
+
+	private void checkCurrentControl(int[] rawIR, int[] rawRed, int off, int sampleNum) throws IOException {
+		switch (currentControl) {
+		case CURRENT_CONTROL_FOLLOWER:
+			checkCurrentBias();
+			break;
+
+		case CURRENT_CONTROL_AGC:
+			if (agc.update(rawIR, rawRed, off, sampleNum)) {
+				irLedCurrent = agc.getIRLedCurrent();
+				redLedCurrentIndex = agc.getRedLedCurrent();
+				applyLedsCurrent();
+				if (metrics != null) {
+					metrics.ledCurrentAdjustments++;
+				}
+			}
+			break;
+
+		default:
+			break;
+		}
 	}
 
 	private void checkCurrentBias() throws IOException {
@@ -161,17 +1449,20 @@ public class TiMAX30100_PulseOximeter {
 		// avoid oscillations
 		if (System.currentTimeMillis() - tsLastBiasCheck > CURRENT_ADJUSTMENT_PERIOD_MS) {
 			boolean changed = false;
-			if (irDCRemover.getDCW() - redDCRemover.getDCW() > 70000
-					&& redLedCurrentIndex < TiMAX30100.MAX30100_LED_CURR_50MA) {
+			double bias = irDCRemover.getDC() - redDCRemover.getDC();
+			if (bias > CURRENT_BIAS_THRESHOLD && redLedCurrentIndex < TiMAX30100.MAX30100_LED_CURR_50MA) {
 				++redLedCurrentIndex;
 				changed = true;
-			} else if (redDCRemover.getDCW() - irDCRemover.getDCW() > 70000 && redLedCurrentIndex > 0) {
+			} else if (bias < -CURRENT_BIAS_THRESHOLD && redLedCurrentIndex > 0) {
 				--redLedCurrentIndex;
 				changed = true;
 			}
 
 			if (changed) {
-				hrm.setLedsCurrent(irLedCurrent, redLedCurrentIndex);
+				applyLedsCurrent();
+				if (metrics != null) {
+					metrics.ledCurrentAdjustments++;
+				}
 				tsLastCurrentAdjustment = System.currentTimeMillis();
 			}
 
@@ -0,0 +1,42 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Events of {@link TiMAX30100_PulseOximeter}, called from the thread running
+ * the signal processing (the caller of update, or the processing thread in
+ * threaded mode)
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_PulseOximeterListener {
+
+	/**
+	 * A beat has been detected
+	 * 
+	 * @param timestamp
+	 *            time of the beat in ms, derived from the sample index
+	 */
+	void onBeatDetected(long timestamp);
+
+	/**
+	 * The heart rate has been updated by a beat
+	 * 
+	 * @param heartRate
+	 *            in bpm
+	 */
+	void onHeartRateUpdated(double heartRate);
+
+	/**
+	 * The SpO2 has been computed again with a different value
+	 * 
+	 * @param spO2
+	 *            in percent, 0 means invalid
+	 */
+	void onSpO2Updated(int spO2);
+
+	/**
+	 * No beat has been detected for a while, heart rate and SpO2 are invalid
+	 * until the next detection
+	 */
+	void onSignalLost();
+}
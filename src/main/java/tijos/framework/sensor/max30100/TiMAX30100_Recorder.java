@@ -0,0 +1,331 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the raw FIFO stream of a TiMAX30100 in a compact framed binary
+ * format, read back on the host by TiMAX30100_RecordingReader. <br>
+ * The FIFO words are stored as read from the sensor, 4 bytes per sample plus
+ * a 2 bytes frame header per drain. Frames are collected in a memory buffer
+ * and written to the stream in large blocks, the drain path only copies
+ * bytes. An I/O error stops the recording for good, it is kept for getError
+ * and nothing more is written to the stream.
+ * <p>
+ * Layout, all values big endian:
+ *
+ * <pre>
+ * header    magic "M30R", version, mode, sampling rate, pulse width,
+ *           IR current, Red current, flags (bit 0: high resolution),
+ *           reserved, start time ms (8)
+ * samples   FRAME_SAMPLES, count (1), count * 4 bytes FIFO words
+ * timestamp FRAME_TIMESTAMP, sample index (8), time ms (8)
+ * overflow  FRAME_OVERFLOW, lost samples (2), samples before the gap (1)
+ * config    FRAME_CONFIG, mode, rate, pulse width, IR, Red, flags
+ * </pre>
+ *
+ * A config frame is written before the first samples drained after a change
+ * of the sensor configuration, e.g. by the LED current control.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Recorder implements TiMAX30100_FifoTap {
+
+	public static final int MAGIC = 0x4D333052; // "M30R"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+
+	public static final int FRAME_SAMPLES = 1;
+	public static final int FRAME_TIMESTAMP = 2;
+	public static final int FRAME_OVERFLOW = 3;
+	public static final int FRAME_CONFIG = 4;
+
+	public static final int FLAG_HIGH_RESOLUTION = 0x01;
+
+	/**
+	 * Default size of the write buffer in bytes
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * Default number of samples between two timestamp frames
+	 */
+	public static final int DEFAULT_TIMESTAMP_INTERVAL = 1000;
+
+	// largest frame: samples of a full FIFO
+	private static final int MAX_FRAME_SIZE = 2 + TiMAX30100.MAX30100_FIFO_DEPTH * 4;
+
+	private OutputStream out;
+	private byte[] block;
+	private int blockPos = 0;
+
+	private TiMAX30100 sensor;
+	private int config = -1;
+
+	private int timestampInterval = DEFAULT_TIMESTAMP_INTERVAL;
+	private long sampleCount = 0;
+	private long nextTimestamp = 0;
+	private long bytesWritten = 0;
+
+	private IOException error;
+
+	/**
+	 * @param out
+	 *            destination of the recording
+	 */
+	public TiMAX30100_Recorder(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param out
+	 *            destination of the recording
+	 * @param bufferSize
+	 *            bytes collected before a write to the stream
+	 */
+	public TiMAX30100_Recorder(OutputStream out, int bufferSize) {
+		if (bufferSize < HEADER_SIZE + MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("buffer size " + bufferSize);
+		}
+
+		this.out = out;
+		this.block = new byte[bufferSize];
+	}
+
+	/**
+	 * Number of samples between two timestamp frames
+	 *
+	 * @param samples
+	 */
+	public void setTimestampInterval(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("timestamp interval " + samples);
+		}
+
+		this.timestampInterval = samples;
+	}
+
+	/**
+	 * Write the header and start recording the samples drained from the
+	 * sensor
+	 *
+	 * @param sensor
+	 */
+	public synchronized void start(TiMAX30100 sensor) {
+		if (this.sensor != null) {
+			throw new IllegalStateException("already recording");
+		}
+
+		if (error != null) {
+			throw new IllegalStateException("recording failed: " + error.getMessage());
+		}
+
+		this.sensor = sensor;
+		this.config = packConfig(sensor);
+		this.sampleCount = 0;
+		this.nextTimestamp = 0;
+
+		putInt(MAGIC);
+		put(VERSION);
+		putConfig(config);
+		put(0);
+		putLong(System.currentTimeMillis());
+
+		sensor.setFifoTap(this);
+	}
+
+	/**
+	 * Stop recording and write the buffered frames, the stream is left open
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void stop() throws IOException {
+		if (sensor != null) {
+			sensor.setFifoTap(null);
+			sensor = null;
+		}
+
+		flush();
+	}
+
+	/**
+	 * Write the buffered frames to the stream
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+
+		try {
+			writeBlock();
+			out.flush();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop recording and close the stream
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			stop();
+		} finally {
+			out.close();
+		}
+	}
+
+	public synchronized boolean isRecording() {
+		return sensor != null;
+	}
+
+	/**
+	 * Error which stopped the recording, null if none
+	 *
+	 * @return
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Number of samples recorded
+	 *
+	 * @return
+	 */
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Number of bytes written to the stream so far, buffered frames excluded
+	 *
+	 * @return
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public synchronized void onSamples(byte[] words, int off, int count) {
+		if (sensor == null || error != null || count <= 0) {
+			return;
+		}
+
+		int current = packConfig(sensor);
+		if (current != config) {
+			if (!reserve(7)) {
+				return;
+			}
+			config = current;
+			put(FRAME_CONFIG);
+			putConfig(config);
+		}
+
+		if (sampleCount >= nextTimestamp) {
+			if (!reserve(17)) {
+				return;
+			}
+			put(FRAME_TIMESTAMP);
+			putLong(sampleCount);
+			putLong(System.currentTimeMillis());
+			nextTimestamp = sampleCount + timestampInterval;
+		}
+
+		if (!reserve(2 + count * 4)) {
+			return;
+		}
+		put(FRAME_SAMPLES);
+		put(count);
+		System.arraycopy(words, off * 4, block, blockPos, count * 4);
+		blockPos += count * 4;
+
+		sampleCount += count;
+	}
+
+	public synchronized void onOverflow(int lost, int samplesBefore) {
+		if (sensor == null || error != null || !reserve(4)) {
+			return;
+		}
+
+		put(FRAME_OVERFLOW);
+		put(lost >> 8);
+		put(lost);
+		put(samplesBefore);
+	}
+
+	/*
+	 * Make room for a frame, writing the buffer out if needed, false once the
+	 * recording failed
+	 */
+	private boolean reserve(int size) {
+		if (error != null) {
+			return false;
+		}
+
+		if (blockPos + size <= block.length) {
+			return true;
+		}
+
+		try {
+			writeBlock();
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if (error == null && blockPos > 0) {
+			out.write(block, 0, blockPos);
+			bytesWritten += blockPos;
+			blockPos = 0;
+		}
+	}
+
+	private void fail(IOException e) {
+		error = e;
+		blockPos = 0;
+		if (sensor != null) {
+			sensor.setFifoTap(null);
+			sensor = null;
+		}
+	}
+
+	private static int packConfig(TiMAX30100 sensor) {
+		return sensor.getMode() << 24 | sensor.getSamplingRate() << 20 | sensor.getLedsPulseWidth() << 16
+				| sensor.getIRLedCurrent() << 12 | sensor.getRedLedCurrent() << 8
+				| (sensor.isHighresModeEnabled() ? FLAG_HIGH_RESOLUTION : 0);
+	}
+
+	private void putConfig(int config) {
+		put(config >> 24);
+		put((config >> 20) & 0x0f);
+		put((config >> 16) & 0x0f);
+		put((config >> 12) & 0x0f);
+		put((config >> 8) & 0x0f);
+		put(config);
+	}
+
+	private void put(int value) {
+		block[blockPos++] = (byte) value;
+	}
+
+	private void putInt(int value) {
+		put(value >> 24);
+		put(value >> 16);
+		put(value >> 8);
+		put(value);
+	}
+
+	private void putLong(long value) {
+		putInt((int) (value >> 32));
+		putInt((int) value);
+	}
+}
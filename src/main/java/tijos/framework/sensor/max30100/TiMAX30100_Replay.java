@@ -0,0 +1,215 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import tijos.framework.util.BigBitConverter;
+
+/**
+ * Offline replay of recorded raw IR/Red samples through the pulse oximeter
+ * processing chain, as fast as the CPU allows. <br>
+ * Two input formats are supported:
+ * <ul>
+ * <li>binary: sequence of 4 bytes FIFO words, IR then Red, big endian 16 bits
+ * each, exactly as read from the MAX30100 FIFO DATA register</li>
+ * <li>CSV: one "ir,red" line per sample, empty lines and lines which do not
+ * start with a digit are skipped</li>
+ * </ul>
+ * Samples with their FIFO gaps, e.g. decoded from a TiMAX30100_Recorder
+ * file, are replayed with run.
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Replay {
+
+	// samples processed per block
+	private static final int BLOCK_SIZE = 256;
+
+	private TiMAX30100_PulseOximeter pox;
+	private int sampleRate;
+	private int outputInterval;
+
+	private long samplesProcessed = 0;
+	private long samplesLost = 0;
+
+	private byte[] words = new byte[BLOCK_SIZE * 4];
+	private int[] irBlock = new int[BLOCK_SIZE];
+	private int[] redBlock = new int[BLOCK_SIZE];
+
+	/**
+	 * @param sampleRate
+	 *            sample rate in Hz of the recording
+	 */
+	public TiMAX30100_Replay(int sampleRate) {
+		this.sampleRate = sampleRate;
+		this.outputInterval = sampleRate;
+		this.pox = new TiMAX30100_PulseOximeter(sampleRate);
+	}
+
+	/**
+	 * Number of samples between two results, default is one second
+	 * 
+	 * @param samples
+	 */
+	public void setOutputInterval(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("output interval " + samples);
+		}
+
+		this.outputInterval = samples;
+	}
+
+	/**
+	 * The pulse oximeter instance the samples are fed to
+	 * 
+	 * @return
+	 */
+	public TiMAX30100_PulseOximeter getPulseOximeter() {
+		return pox;
+	}
+
+	/**
+	 * Number of samples processed so far
+	 * 
+	 * @return
+	 */
+	public long getSamplesProcessed() {
+		return samplesProcessed;
+	}
+
+	/**
+	 * Number of samples lost in the FIFO gaps replayed so far, they count in
+	 * the time base of the results
+	 * 
+	 * @return
+	 */
+	public long getSamplesLost() {
+		return samplesLost;
+	}
+
+	/**
+	 * Replay a binary recording of raw FIFO words until end of stream
+	 * 
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void runBinary(InputStream in, TiMAX30100_ReplayOutput out) throws IOException {
+		int pending = 0;
+
+		while (true) {
+			int len = in.read(words, pending, words.length - pending);
+			if (len < 0) {
+				break;
+			}
+
+			pending += len;
+
+			int count = pending / 4;
+			for (int i = 0; i < count; i++) {
+				irBlock[i] = BigBitConverter.ToUInt16(words, i * 4);
+				redBlock[i] = BigBitConverter.ToUInt16(words, i * 4 + 2);
+			}
+
+			feed(count, out);
+
+			// keep an incomplete word for the next read
+			int rest = pending - count * 4;
+			System.arraycopy(words, count * 4, words, 0, rest);
+			pending = rest;
+		}
+	}
+
+	/**
+	 * Replay a CSV recording until end of stream
+	 * 
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void runCsv(Reader in, TiMAX30100_ReplayOutput out) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		int count = 0;
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0 || !Character.isDigit(line.charAt(0))) {
+				continue;
+			}
+
+			int sep = line.indexOf(',');
+			if (sep < 0) {
+				throw new IOException("invalid sample line: " + line);
+			}
+
+			try {
+				irBlock[count] = Integer.parseInt(line.substring(0, sep).trim());
+				redBlock[count] = Integer.parseInt(line.substring(sep + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid sample line: " + line);
+			}
+
+			if (++count == BLOCK_SIZE) {
+				feed(count, out);
+				count = 0;
+			}
+		}
+
+		feed(count, out);
+	}
+
+	/**
+	 * Replay samples already held in memory
+	 * 
+	 * @param ir
+	 * @param red
+	 * @param off
+	 * @param count
+	 * @param out
+	 */
+	public void run(int[] ir, int[] red, int off, int count, TiMAX30100_ReplayOutput out) {
+		run(ir, red, null, off, count, out);
+	}
+
+	/**
+	 * Replay samples already held in memory, with the number of samples lost
+	 * before each sample
+	 * 
+	 * @param ir
+	 * @param red
+	 * @param lost
+	 *            may be null
+	 * @param off
+	 * @param count
+	 * @param out
+	 */
+	public void run(int[] ir, int[] red, int[] lost, int off, int count, TiMAX30100_ReplayOutput out) {
+		while (count > 0) {
+			// stop at each output boundary
+			int toNext = outputInterval - (int) (samplesProcessed % outputInterval);
+			int n = Math.min(count, toNext);
+
+			pox.process(ir, red, lost, off, n);
+			if (lost != null) {
+				for (int i = off; i < off + n; i++) {
+					samplesLost += lost[i];
+				}
+			}
+			samplesProcessed += n;
+			off += n;
+			count -= n;
+
+			if (samplesProcessed % outputInterval == 0 && out != null) {
+				out.onResult((samplesProcessed + samplesLost) * 1000 / sampleRate, pox.getHeartRate(), pox.getSpO2());
+			}
+		}
+	}
+
+	private void feed(int count, TiMAX30100_ReplayOutput out) {
+		run(irBlock, redBlock, 0, count, out);
+	}
+}
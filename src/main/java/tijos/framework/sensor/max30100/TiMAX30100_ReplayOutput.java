@@ -0,0 +1,24 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Receiver of the heart rate / SpO2 time series produced by
+ * {@link TiMAX30100_Replay}
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_ReplayOutput {
+
+	/**
+	 * Called at every output interval
+	 * 
+	 * @param timestamp
+	 *            time in ms of the last processed sample, counted from the
+	 *            first sample, samples lost in FIFO gaps included
+	 * @param heartRate
+	 *            heart rate in bpm, 0 means invalid
+	 * @param spO2
+	 *            SpO2 in percent, 0 means invalid
+	 */
+	void onResult(long timestamp, double heartRate, int spO2);
+}
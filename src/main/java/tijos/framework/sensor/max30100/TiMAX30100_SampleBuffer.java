@@ -0,0 +1,284 @@
+package tijos.framework.sensor.max30100;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Fixed-capacity interleaved IR/Red sample ring buffer backed by a single
+ * int array, no allocation happens after construction. <br>
+ * IR and Red values are consumed independently by {@link #popIR()} and
+ * {@link #popRed()}, a sample slot is released once both channels have been
+ * consumed. <br>
+ * Each sample also carries the number of samples lost just before it, either
+ * reported by the sensor FIFO overflow counter or dropped by this buffer, so
+ * that gaps in the stream stay visible to the consumer.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SampleBuffer {
+
+	/**
+	 * When full, the oldest stored sample is discarded
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 0;
+
+	/**
+	 * When full, the incoming sample is discarded
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 1;
+
+	/**
+	 * When full, an IllegalStateException is thrown
+	 */
+	public static final int OVERFLOW_THROW = 2;
+
+	// the number of samples lost before a sample is kept above the 16 bits
+	// IR value
+	private static final int LOST_SHIFT = 16;
+	private static final int VALUE_MASK = 0xFFFF;
+	private static final int MAX_LOST = 0x7FFF;
+
+	// interleaved IR, Red
+	private int[] samples;
+	private int capacity;
+	private int overflowPolicy;
+
+	// index of the oldest stored sample
+	private int head = 0;
+	// number of stored samples
+	private int size = 0;
+
+	// samples consumed per channel, counted from head
+	private int irConsumed = 0;
+	private int redConsumed = 0;
+
+	private long droppedCount = 0;
+
+	// lost samples to report on the next stored sample
+	private int pendingLost = 0;
+
+	/**
+	 * Initialize with capacity and overflow policy
+	 *
+	 * @param capacity
+	 *            maximum number of IR/Red sample pairs
+	 * @param overflowPolicy
+	 *            OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST or OVERFLOW_THROW
+	 */
+	public TiMAX30100_SampleBuffer(int capacity, int overflowPolicy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+
+		if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_THROW) {
+			throw new IllegalArgumentException("overflow policy " + overflowPolicy);
+		}
+
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		this.samples = new int[capacity * 2];
+	}
+
+	/**
+	 * Store a sample pair
+	 *
+	 * @param ir
+	 *            16 bits IR value
+	 * @param red
+	 *            16 bits Red value
+	 * @return false if the sample has been dropped
+	 */
+	public boolean push(int ir, int red) {
+		return push(ir, red, 0);
+	}
+
+	/**
+	 * Store a sample pair preceded by a gap
+	 *
+	 * @param ir
+	 *            16 bits IR value
+	 * @param red
+	 *            16 bits Red value
+	 * @param lostBefore
+	 *            number of samples lost just before this one
+	 * @return false if the sample has been dropped
+	 */
+	public boolean push(int ir, int red, int lostBefore) {
+		int lost = lostBefore + pendingLost;
+
+		if (size == capacity) {
+			switch (overflowPolicy) {
+			case OVERFLOW_DROP_NEWEST:
+				droppedCount++;
+				pendingLost = lost + 1;
+				return false;
+
+			case OVERFLOW_THROW:
+				throw new IllegalStateException("sample buffer full");
+
+			default:
+				int droppedLost = samples[head * 2] >>> LOST_SHIFT;
+				head = (head + 1) % capacity;
+				size--;
+				if (irConsumed > 0)
+					irConsumed--;
+				if (redConsumed > 0)
+					redConsumed--;
+				droppedCount++;
+
+				// the new oldest sample now follows the dropped one
+				if (size > 0) {
+					int pos = head * 2;
+					int headLost = Math.min((samples[pos] >>> LOST_SHIFT) + droppedLost + 1, MAX_LOST);
+					samples[pos] = (samples[pos] & VALUE_MASK) | (headLost << LOST_SHIFT);
+				} else {
+					lost += droppedLost + 1;
+				}
+				break;
+			}
+		}
+
+		int pos = ((head + size) % capacity) * 2;
+		samples[pos] = (ir & VALUE_MASK) | (Math.min(lost, MAX_LOST) << LOST_SHIFT);
+		samples[pos + 1] = red & VALUE_MASK;
+		size++;
+		pendingLost = 0;
+
+		return true;
+	}
+
+	/**
+	 * Get the next IR value
+	 *
+	 * @return IR value
+	 */
+	public int popIR() {
+		if (irConsumed >= size) {
+			throw new NoSuchElementException();
+		}
+
+		int value = samples[((head + irConsumed) % capacity) * 2] & VALUE_MASK;
+		irConsumed++;
+		release();
+
+		return value;
+	}
+
+	/**
+	 * Get the next Red value
+	 *
+	 * @return Red value
+	 */
+	public int popRed() {
+		if (redConsumed >= size) {
+			throw new NoSuchElementException();
+		}
+
+		int value = samples[((head + redConsumed) % capacity) * 2 + 1];
+		redConsumed++;
+		release();
+
+		return value;
+	}
+
+	/**
+	 * Copy pending sample pairs into the caller's arrays and consume them
+	 *
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param off
+	 *            first index to write in both arrays
+	 * @param max
+	 *            maximum number of pairs to copy
+	 * @return number of pairs copied
+	 */
+	public int read(int[] ir, int[] red, int off, int max) {
+		return read(ir, red, null, off, max);
+	}
+
+	/**
+	 * Copy pending sample pairs and the gaps preceding them into the caller's
+	 * arrays and consume them
+	 *
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param lost
+	 *            destination of the number of samples lost before each
+	 *            sample, may be null
+	 * @param off
+	 *            first index to write in the arrays
+	 * @param max
+	 *            maximum number of pairs to copy
+	 * @return number of pairs copied
+	 */
+	public int read(int[] ir, int[] red, int[] lost, int off, int max) {
+		int count = Math.min(max, Math.min(size - irConsumed, size - redConsumed));
+
+		for (int i = 0; i < count; i++) {
+			int word = samples[((head + irConsumed + i) % capacity) * 2];
+			ir[off + i] = word & VALUE_MASK;
+			red[off + i] = samples[((head + redConsumed + i) % capacity) * 2 + 1];
+			if (lost != null) {
+				lost[off + i] = word >>> LOST_SHIFT;
+			}
+		}
+
+		irConsumed += count;
+		redConsumed += count;
+		release();
+
+		return count;
+	}
+
+	/**
+	 * Number of IR values not yet consumed
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size - irConsumed;
+	}
+
+	/**
+	 * Maximum number of sample pairs
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Total number of samples discarded because the buffer was full
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Discard all stored samples
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+		irConsumed = 0;
+		redConsumed = 0;
+		pendingLost = 0;
+	}
+
+	private void release() {
+		int released = Math.min(irConsumed, redConsumed);
+		if (released > 0) {
+			head = (head + released) % capacity;
+			size -= released;
+			irConsumed -= released;
+			redConsumed -= released;
+		}
+	}
+}
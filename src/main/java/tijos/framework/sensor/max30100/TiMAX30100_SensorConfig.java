@@ -0,0 +1,246 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Immutable MAX30100 configuration, applied in one go by
+ * {@link TiMAX30100#apply(TiMAX30100_SensorConfig)}
+ * 
+ * <pre>
+ * TiMAX30100_SensorConfig config = new TiMAX30100_SensorConfig.Builder()
+ * 		.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR)
+ * 		.setSamplingRate(TiMAX30100.MAX30100_SAMPRATE_100HZ)
+ * 		.build();
+ * </pre>
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SensorConfig {
+
+	// Longest pulse width permitted by each sampling rate, tables 8 and 9, p19
+	// of the MAX30100 datasheet
+	private static final int[] SPO2_MAX_PULSE_WIDTH = new int[] { TiMAX30100.MAX30100_SPC_PW_1600US_16BITS,
+			TiMAX30100.MAX30100_SPC_PW_1600US_16BITS, TiMAX30100.MAX30100_SPC_PW_800US_15BITS,
+			TiMAX30100.MAX30100_SPC_PW_800US_15BITS, TiMAX30100.MAX30100_SPC_PW_400US_14BITS,
+			TiMAX30100.MAX30100_SPC_PW_200US_13BITS, TiMAX30100.MAX30100_SPC_PW_200US_13BITS,
+			TiMAX30100.MAX30100_SPC_PW_200US_13BITS };
+
+	private static final int[] HR_MAX_PULSE_WIDTH = new int[] { TiMAX30100.MAX30100_SPC_PW_1600US_16BITS,
+			TiMAX30100.MAX30100_SPC_PW_1600US_16BITS, TiMAX30100.MAX30100_SPC_PW_800US_15BITS,
+			TiMAX30100.MAX30100_SPC_PW_800US_15BITS, TiMAX30100.MAX30100_SPC_PW_400US_14BITS,
+			TiMAX30100.MAX30100_SPC_PW_400US_14BITS, TiMAX30100.MAX30100_SPC_PW_400US_14BITS,
+			TiMAX30100.MAX30100_SPC_PW_400US_14BITS };
+
+	private final int mode;
+	private final int pulseWidth;
+	private final int samplingRate;
+	private final int irLedCurrent;
+	private final int redLedCurrent;
+	private final boolean highresModeEnabled;
+
+	private TiMAX30100_SensorConfig(Builder builder) {
+		this.mode = builder.mode;
+		this.pulseWidth = builder.pulseWidth;
+		this.samplingRate = builder.samplingRate;
+		this.irLedCurrent = builder.irLedCurrent;
+		this.redLedCurrent = builder.redLedCurrent;
+		this.highresModeEnabled = builder.highresModeEnabled;
+	}
+
+	/**
+	 * Check a sampling rate / pulse width combination against the datasheet
+	 * 
+	 * @param mode
+	 *            MAX30100_MODE_HRONLY or MAX30100_MODE_SPO2_HR
+	 * @param samplingRate
+	 *            MAX30100_SAMPRATE_xxx
+	 * @param pulseWidth
+	 *            MAX30100_SPC_PW_xxx
+	 * @return true if permitted
+	 */
+	public static boolean isValidCombination(int mode, int samplingRate, int pulseWidth) {
+		if (samplingRate < TiMAX30100.MAX30100_SAMPRATE_50HZ || samplingRate > TiMAX30100.MAX30100_SAMPRATE_1000HZ) {
+			return false;
+		}
+
+		if (pulseWidth < TiMAX30100.MAX30100_SPC_PW_200US_13BITS
+				|| pulseWidth > TiMAX30100.MAX30100_SPC_PW_1600US_16BITS) {
+			return false;
+		}
+
+		if (mode == TiMAX30100.MAX30100_MODE_SPO2_HR) {
+			return pulseWidth <= SPO2_MAX_PULSE_WIDTH[samplingRate];
+		}
+
+		return pulseWidth <= HR_MAX_PULSE_WIDTH[samplingRate];
+	}
+
+	/**
+	 * Longest pulse width permitted for a sampling rate
+	 * 
+	 * @param mode
+	 *            MAX30100_MODE_HRONLY or MAX30100_MODE_SPO2_HR
+	 * @param samplingRate
+	 *            MAX30100_SAMPRATE_xxx
+	 * @return MAX30100_SPC_PW_xxx
+	 */
+	public static int getMaxPulseWidth(int mode, int samplingRate) {
+		TiMAX30100.checkSamplingRate(samplingRate);
+
+		if (mode == TiMAX30100.MAX30100_MODE_SPO2_HR) {
+			return SPO2_MAX_PULSE_WIDTH[samplingRate];
+		}
+
+		return HR_MAX_PULSE_WIDTH[samplingRate];
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public int getLedsPulseWidth() {
+		return pulseWidth;
+	}
+
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	public int getIRLedCurrent() {
+		return irLedCurrent;
+	}
+
+	public int getRedLedCurrent() {
+		return redLedCurrent;
+	}
+
+	public boolean isHighresModeEnabled() {
+		return highresModeEnabled;
+	}
+
+	/**
+	 * Value of the mode configuration register
+	 */
+	int getModeConfiguration() {
+		return mode;
+	}
+
+	/**
+	 * Value of the SpO2 configuration register
+	 */
+	int getSpO2Configuration() {
+		int value = (samplingRate << 2) | pulseWidth;
+		if (highresModeEnabled) {
+			value |= TiMAX30100.MAX30100_SPC_SPO2_HI_RES_EN;
+		}
+		return value;
+	}
+
+	/**
+	 * Value of the LED configuration register
+	 */
+	int getLedConfiguration() {
+		return (redLedCurrent << 4) | irLedCurrent;
+	}
+
+	/**
+	 * Builder of TiMAX30100_SensorConfig, defaults to SpO2 mode, 100Hz, 1600us,
+	 * 50mA on both LEDs and high resolution enabled
+	 */
+	public static class Builder {
+		private int mode = TiMAX30100.MAX30100_MODE_SPO2_HR;
+		private int pulseWidth = TiMAX30100.MAX30100_SPC_PW_1600US_16BITS;
+		private int samplingRate = TiMAX30100.MAX30100_SAMPRATE_100HZ;
+		private int irLedCurrent = TiMAX30100.MAX30100_LED_CURR_50MA;
+		private int redLedCurrent = TiMAX30100.MAX30100_LED_CURR_50MA;
+		private boolean highresModeEnabled = true;
+
+		public Builder() {
+
+		}
+
+		/**
+		 * Start from an existing configuration
+		 * 
+		 * @param config
+		 */
+		public Builder(TiMAX30100_SensorConfig config) {
+			this.mode = config.mode;
+			this.pulseWidth = config.pulseWidth;
+			this.samplingRate = config.samplingRate;
+			this.irLedCurrent = config.irLedCurrent;
+			this.redLedCurrent = config.redLedCurrent;
+			this.highresModeEnabled = config.highresModeEnabled;
+		}
+
+		/**
+		 * @param mode
+		 *            MAX30100_MODE_HRONLY or MAX30100_MODE_SPO2_HR
+		 */
+		public Builder setMode(int mode) {
+			this.mode = mode;
+			return this;
+		}
+
+		/**
+		 * @param pulseWidth
+		 *            MAX30100_SPC_PW_xxx
+		 */
+		public Builder setLedsPulseWidth(int pulseWidth) {
+			this.pulseWidth = pulseWidth;
+			return this;
+		}
+
+		/**
+		 * @param samplingRate
+		 *            MAX30100_SAMPRATE_xxx
+		 */
+		public Builder setSamplingRate(int samplingRate) {
+			this.samplingRate = samplingRate;
+			return this;
+		}
+
+		/**
+		 * @param irLedCurrent
+		 *            MAX30100_LED_CURR_xxx of the IR LED
+		 * @param redLedCurrent
+		 *            MAX30100_LED_CURR_xxx of the Red LED
+		 */
+		public Builder setLedsCurrent(int irLedCurrent, int redLedCurrent) {
+			this.irLedCurrent = irLedCurrent;
+			this.redLedCurrent = redLedCurrent;
+			return this;
+		}
+
+		public Builder setHighresModeEnabled(boolean enabled) {
+			this.highresModeEnabled = enabled;
+			return this;
+		}
+
+		/**
+		 * Validate and create the configuration
+		 * 
+		 * @return
+		 * @throws IllegalArgumentException
+		 *             if a value is out of range or the sampling rate / pulse
+		 *             width combination is not permitted
+		 */
+		public TiMAX30100_SensorConfig build() {
+			if (mode != TiMAX30100.MAX30100_MODE_HRONLY && mode != TiMAX30100.MAX30100_MODE_SPO2_HR) {
+				throw new IllegalArgumentException("mode " + mode);
+			}
+
+			if (irLedCurrent < TiMAX30100.MAX30100_LED_CURR_0MA || irLedCurrent > TiMAX30100.MAX30100_LED_CURR_50MA
+					|| redLedCurrent < TiMAX30100.MAX30100_LED_CURR_0MA
+					|| redLedCurrent > TiMAX30100.MAX30100_LED_CURR_50MA) {
+				throw new IllegalArgumentException("LED current " + irLedCurrent + "/" + redLedCurrent);
+			}
+
+			if (!isValidCombination(mode, samplingRate, pulseWidth)) {
+				throw new IllegalArgumentException(
+						"sampling rate " + samplingRate + " does not permit pulse width " + pulseWidth);
+			}
+
+			return new TiMAX30100_SensorConfig(this);
+		}
+	}
+}
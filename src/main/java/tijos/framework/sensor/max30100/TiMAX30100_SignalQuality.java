@@ -0,0 +1,378 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Signal quality index of the IR/Red streams, computed incrementally over
+ * consecutive windows. <br>
+ * At the end of each window the raw signals are checked for clipping, a
+ * flat line or a too low DC level, then scored from:
+ * <ul>
+ * <li>the perfusion index, peak to peak IR AC over IR DC, which must be in
+ * a plausible range and must not jump above its recent level: motion adds
+ * large swings to the pulse</li>
+ * <li>the correlation of the IR and Red AC signals, both see the same pulse
+ * while noise is uncorrelated</li>
+ * </ul>
+ * Clipping and perfusion jumps are also checked on every sample, so that a
+ * window is rejected as soon as it goes bad rather than at its end. The
+ * score is 0 to 100, 0 when a check failed.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SignalQuality {
+
+	/**
+	 * Reasons of a low score, see getFlags
+	 */
+	public static final int QUALITY_CLIPPING = 0x01;
+	public static final int QUALITY_FLATLINE = 0x02;
+	public static final int QUALITY_LOW_SIGNAL = 0x04;
+	public static final int QUALITY_LOW_PERFUSION = 0x08;
+	public static final int QUALITY_HIGH_PERFUSION = 0x10;
+	public static final int QUALITY_MOTION = 0x20;
+	public static final int QUALITY_LOW_CORRELATION = 0x40;
+
+	/**
+	 * Default window length in samples, 1 second at 100Hz
+	 */
+	public static final int DEFAULT_WINDOW_LENGTH = 100;
+
+	/**
+	 * Default plausible perfusion index range, 0.05% to 20%
+	 */
+	public static final double DEFAULT_MIN_PERFUSION = 0.0005;
+	public static final double DEFAULT_MAX_PERFUSION = 0.2;
+
+	/**
+	 * Default perfusion index jump, relative to the recent level, flagged as
+	 * motion
+	 */
+	public static final double DEFAULT_MOTION_FACTOR = 2.5;
+
+	/**
+	 * Default IR/Red correlation scored 0, 1 is scored 100
+	 */
+	public static final double DEFAULT_MIN_CORRELATION = 0.5;
+
+	/**
+	 * Default score from which a window is acceptable
+	 */
+	public static final int DEFAULT_MIN_SCORE = 50;
+
+	// raw IR range under which the signal is considered stuck
+	private static final int FLATLINE_RANGE = 2;
+
+	// consecutive motion windows after which the perfusion level is taken
+	// as the new normal
+	private static final int REBASELINE_WINDOWS = 30;
+
+	// smoothing of the perfusion level
+	private static final double PERFUSION_ALPHA = 0.3;
+
+	private int windowLength = DEFAULT_WINDOW_LENGTH;
+	private double minPerfusion = DEFAULT_MIN_PERFUSION;
+	private double maxPerfusion = DEFAULT_MAX_PERFUSION;
+	private double motionFactor = DEFAULT_MOTION_FACTOR;
+	private double minCorrelation = DEFAULT_MIN_CORRELATION;
+	private int minScore = DEFAULT_MIN_SCORE;
+	private int clipLevel = TiMAX30100_LedAgc.DEFAULT_CLIP_LEVEL;
+	private int lowSignalLevel = TiMAX30100_LedAgc.DEFAULT_LOW_SIGNAL_LEVEL;
+
+	// current window
+	private int windowFill = 0;
+	private double rawIRSum = 0;
+	private double rawIRMin = 0;
+	private double rawIRMax = 0;
+	private double irACMin = 0;
+	private double irACMax = 0;
+	private double irSum = 0;
+	private double redSum = 0;
+	private double irSqSum = 0;
+	private double redSqSum = 0;
+	private double irRedSum = 0;
+	private int windowFlags = 0;
+
+	// last complete window
+	private int score = 0;
+	private int flags = 0;
+	private double perfusionIndex = 0;
+	private double correlation = 0;
+	private double dcLevel = 0;
+
+	private double perfusionLevel = 0;
+	private int motionWindows = 0;
+	private long windowCount = 0;
+
+	/**
+	 * Number of samples of a window, clears the estimator
+	 *
+	 * @param samples
+	 */
+	public void setWindowLength(int samples) {
+		if (samples < 2) {
+			throw new IllegalArgumentException("window length " + samples);
+		}
+
+		this.windowLength = samples;
+		reset();
+	}
+
+	public int getWindowLength() {
+		return windowLength;
+	}
+
+	/**
+	 * Plausible perfusion index range
+	 *
+	 * @param min
+	 * @param max
+	 *            peak to peak AC over DC, e.g. 0.2 for 20%
+	 * @param motionFactor
+	 *            jump above the recent perfusion level considered motion, 0
+	 *            to disable
+	 */
+	public void setPerfusionRange(double min, double max, double motionFactor) {
+		if (min < 0 || max <= min || (motionFactor != 0 && motionFactor <= 1)) {
+			throw new IllegalArgumentException("perfusion range " + min + "-" + max + "/" + motionFactor);
+		}
+
+		this.minPerfusion = min;
+		this.maxPerfusion = max;
+		this.motionFactor = motionFactor;
+	}
+
+	/**
+	 * @param minCorrelation
+	 *            IR/Red correlation scored 0
+	 * @param minScore
+	 *            score from which a window is acceptable
+	 */
+	public void setThresholds(double minCorrelation, int minScore) {
+		if (minCorrelation < -1 || minCorrelation >= 1 || minScore < 0 || minScore > 100) {
+			throw new IllegalArgumentException("thresholds " + minCorrelation + "/" + minScore);
+		}
+
+		this.minCorrelation = minCorrelation;
+		this.minScore = minScore;
+	}
+
+	/**
+	 * @param clipLevel
+	 *            raw value from which a sample is considered clipped
+	 * @param lowSignalLevel
+	 *            raw DC level under which there is no usable signal
+	 */
+	public void setLimits(int clipLevel, int lowSignalLevel) {
+		if (lowSignalLevel < 0 || clipLevel <= lowSignalLevel || clipLevel > 0xFFFF) {
+			throw new IllegalArgumentException("limits " + clipLevel + "/" + lowSignalLevel);
+		}
+
+		this.clipLevel = clipLevel;
+		this.lowSignalLevel = lowSignalLevel;
+	}
+
+	/**
+	 * Forget the signal history, the next window starts from scratch
+	 */
+	public void reset() {
+		score = 0;
+		flags = 0;
+		perfusionIndex = 0;
+		correlation = 0;
+		dcLevel = 0;
+		perfusionLevel = 0;
+		motionWindows = 0;
+		windowCount = 0;
+		restartWindow();
+	}
+
+	/**
+	 * Add a sample
+	 *
+	 * @param rawIR
+	 * @param rawRed
+	 *            raw values, after the decimation if any
+	 * @param irAC
+	 * @param redAC
+	 *            DC removed values
+	 * @return true at the end of a window, the score has been updated
+	 */
+	public boolean addSample(double rawIR, double rawRed, double irAC, double redAC) {
+		if (windowFill == 0) {
+			rawIRMin = rawIRMax = rawIR;
+			irACMin = irACMax = irAC;
+		} else {
+			rawIRMin = Math.min(rawIRMin, rawIR);
+			rawIRMax = Math.max(rawIRMax, rawIR);
+			irACMin = Math.min(irACMin, irAC);
+			irACMax = Math.max(irACMax, irAC);
+		}
+
+		rawIRSum += rawIR;
+		irSum += irAC;
+		redSum += redAC;
+		irSqSum += irAC * irAC;
+		redSqSum += redAC * redAC;
+		irRedSum += irAC * redAC;
+
+		if (rawIR >= clipLevel || rawRed >= clipLevel) {
+			windowFlags |= QUALITY_CLIPPING;
+		}
+
+		// early motion check against the DC of the previous window
+		if (motionFactor > 0 && perfusionLevel > 0 && dcLevel > 0
+				&& irACMax - irACMin > motionFactor * perfusionLevel * dcLevel) {
+			windowFlags |= QUALITY_MOTION;
+		}
+
+		if (++windowFill < windowLength) {
+			return false;
+		}
+
+		evaluate();
+		restartWindow();
+		return true;
+	}
+
+	/**
+	 * Neither the last complete window nor the current one failed: beats and
+	 * SpO2 samples can be trusted
+	 *
+	 * @return
+	 */
+	public boolean isAcceptable() {
+		return isLastWindowAccepted() && windowFlags == 0;
+	}
+
+	/**
+	 * The last complete window scored at least the minimum score
+	 *
+	 * @return
+	 */
+	public boolean isLastWindowAccepted() {
+		return windowCount > 0 && score >= minScore;
+	}
+
+	/**
+	 * The current window has already been rejected
+	 *
+	 * @return
+	 */
+	public boolean isWindowRejected() {
+		return windowFlags != 0;
+	}
+
+	/**
+	 * Score of the last complete window
+	 *
+	 * @return 0 to 100
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Reasons of the score of the last complete window
+	 *
+	 * @return QUALITY_xxx bits
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Perfusion index of the last complete window, peak to peak IR AC over
+	 * IR DC
+	 *
+	 * @return
+	 */
+	public double getPerfusionIndex() {
+		return perfusionIndex;
+	}
+
+	/**
+	 * IR/Red correlation of the last complete window
+	 *
+	 * @return -1 to 1
+	 */
+	public double getCorrelation() {
+		return correlation;
+	}
+
+	/**
+	 * Number of windows evaluated since the last reset
+	 *
+	 * @return
+	 */
+	public long getWindowCount() {
+		return windowCount;
+	}
+
+	private void evaluate() {
+		int f = windowFlags;
+		int n = windowFill;
+
+		dcLevel = rawIRSum / n;
+		perfusionIndex = dcLevel > 0 ? (irACMax - irACMin) / dcLevel : 0;
+
+		double irVar = irSqSum - irSum * irSum / n;
+		double redVar = redSqSum - redSum * redSum / n;
+		double cov = irRedSum - irSum * redSum / n;
+		correlation = irVar > 0 && redVar > 0 ? cov / Math.sqrt(irVar * redVar) : 0;
+
+		if (rawIRMax - rawIRMin <= FLATLINE_RANGE) {
+			f |= QUALITY_FLATLINE;
+		}
+		if (dcLevel < lowSignalLevel) {
+			f |= QUALITY_LOW_SIGNAL;
+		}
+		if (perfusionIndex < minPerfusion) {
+			f |= QUALITY_LOW_PERFUSION;
+		} else if (perfusionIndex > maxPerfusion) {
+			f |= QUALITY_HIGH_PERFUSION;
+		}
+		if (correlation < minCorrelation) {
+			f |= QUALITY_LOW_CORRELATION;
+		}
+
+		updatePerfusionLevel(f);
+
+		double corrScore = (correlation - minCorrelation) / (1 - minCorrelation);
+		boolean failed = (f & ~QUALITY_LOW_CORRELATION) != 0;
+		score = failed ? 0 : (int) Math.round(100 * Math.max(0, Math.min(1, corrScore)));
+		flags = f;
+		windowCount++;
+	}
+
+	/*
+	 * Recent perfusion index of the windows without other defects. A level
+	 * that stays high is taken as the new normal after a few windows.
+	 */
+	private void updatePerfusionLevel(int f) {
+		if ((f & ~(QUALITY_MOTION | QUALITY_LOW_CORRELATION)) != 0) {
+			return;
+		}
+
+		if ((f & QUALITY_MOTION) != 0 && ++motionWindows < REBASELINE_WINDOWS) {
+			return;
+		}
+
+		if (perfusionLevel == 0 || motionWindows >= REBASELINE_WINDOWS) {
+			perfusionLevel = perfusionIndex;
+		} else {
+			perfusionLevel += PERFUSION_ALPHA * (perfusionIndex - perfusionLevel);
+		}
+		motionWindows = 0;
+	}
+
+	private void restartWindow() {
+		windowFill = 0;
+		rawIRSum = 0;
+		irSum = 0;
+		redSum = 0;
+		irSqSum = 0;
+		redSqSum = 0;
+		irRedSum = 0;
+		windowFlags = 0;
+	}
+}
@@ -0,0 +1,536 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Register level MAX30100 simulator for hardware-free testing and
+ * benchmarking, TiMAX30100 and TiMAX30100_PulseOximeter run against it
+ * unmodified. <br>
+ * It models the FIFO write / overflow / read pointers, the mode, SpO2, LED and
+ * interrupt registers, part ID 0x11 and the temperature conversion, and
+ * produces a synthetic PPG waveform at the configured sampling rate with
+ * controllable heart rate, SpO2, noise and motion artifacts. <br>
+ * The clock either follows the wall clock (default) or is advanced manually
+ * by {@link #advance(long)} / {@link #advanceSamples(int)}.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_Simulator implements TiMAX30100_I2CBus {
+
+	public static final int REVISION_ID = 0x03;
+
+	// in us, temperature conversion time
+	private static final long TEMPERATURE_CONVERSION_TIME = 29000;
+
+	// ADC counts of the DC level at 50mA
+	private static final double FULL_CURRENT_DC = 50000;
+
+	private static final int[] ADC_BITS = new int[] { 13, 14, 15, 16 };
+
+	private int slaveAddress;
+	private byte[] registers = new byte[256];
+
+	// FIFO, raw 4 bytes words
+	private byte[] fifo = new byte[TiMAX30100.MAX30100_FIFO_DEPTH * 4];
+	private int fifoCount = 0;
+	// byte index inside the current FIFO word
+	private int fifoByteIndex = 0;
+
+	// in us
+	private long simTime = 0;
+	private long nextSampleTime = 0;
+	private long temperatureReadyTime = -1;
+
+	private boolean realTime = true;
+	private long lastWallTime = -1;
+
+	// signal model
+	private double heartRate = 72;
+	private double spO2 = 97;
+	private double perfusionIndex = 0.02;
+	private double noise = 20;
+	private double motionAmplitude = 0;
+	private double motionFrequency = 1.5;
+	private double temperature = 32.5;
+	private double irReflectance = 1.0;
+	private double redReflectance = 0.8;
+
+	private double phase = 0;
+	private long sampleCount = 0;
+	private Random random;
+
+	private TiMAX30100_InterruptLatch interruptLatch;
+
+	private long transactionCount = 0;
+	private long bytesTransferred = 0;
+
+	/**
+	 * Simulator at the default slave address, fixed random seed
+	 */
+	public TiMAX30100_Simulator() {
+		this(TiMAX30100.MAX30100_SLAVE_ADDRESS, 1);
+	}
+
+	/**
+	 * @param slaveAddress
+	 *            I2C address the simulator answers to
+	 * @param seed
+	 *            seed of the noise generator
+	 */
+	public TiMAX30100_Simulator(int slaveAddress, long seed) {
+		this.slaveAddress = slaveAddress;
+		this.random = new Random(seed);
+		powerOnReset();
+	}
+
+	/**
+	 * Follow the wall clock (true) or only advance on advance/advanceSamples
+	 *
+	 * @param realTime
+	 */
+	public synchronized void setRealTime(boolean realTime) {
+		this.realTime = realTime;
+		this.lastWallTime = -1;
+	}
+
+	/**
+	 * Advance the simulated clock
+	 *
+	 * @param ms
+	 */
+	public synchronized void advance(long ms) {
+		step(simTime + ms * 1000);
+	}
+
+	/**
+	 * Advance the simulated clock by a number of sample periods at the
+	 * configured sampling rate
+	 *
+	 * @param samples
+	 */
+	public synchronized void advanceSamples(int samples) {
+		step(simTime + samples * getSamplePeriod());
+	}
+
+	/**
+	 * @param bpm
+	 *            heart rate of the synthetic waveform
+	 */
+	public synchronized void setHeartRate(double bpm) {
+		this.heartRate = bpm;
+	}
+
+	/**
+	 * SpO2 of the synthetic waveform: the Red/IR ratio of ratios R =
+	 * (ACred/DCred) / (ACir/DCir) follows the empirical SpO2 = 110 - 25 * R.
+	 * <br>
+	 * The SpO2 calculator of this library computes log(ACred^2) / log(ACir^2)
+	 * instead, which hardly moves with R: the value set here is not read
+	 * back end to end, the reading stays about 97% to 99%. Use it to vary the
+	 * Red modulation, not as a reference for the computed SpO2.
+	 * 
+	 * @param percent
+	 */
+	public synchronized void setSpO2(double percent) {
+		this.spO2 = percent;
+	}
+
+	/**
+	 * @param ratio
+	 *            IR AC/DC ratio of the pulse, 0.02 by default
+	 */
+	public synchronized void setPerfusionIndex(double ratio) {
+		this.perfusionIndex = ratio;
+	}
+
+	/**
+	 * @param counts
+	 *            standard deviation of the gaussian noise in ADC counts
+	 */
+	public synchronized void setNoise(double counts) {
+		this.noise = counts;
+	}
+
+	/**
+	 * Baseline wander added to both channels
+	 *
+	 * @param amplitude
+	 *            in ADC counts, 0 to disable
+	 * @param frequency
+	 *            in Hz
+	 */
+	public synchronized void setMotionArtifact(double amplitude, double frequency) {
+		this.motionAmplitude = amplitude;
+		this.motionFrequency = frequency;
+	}
+
+	/**
+	 * Tissue reflectance scaling the DC level of each channel, 1.0 gives
+	 * 50000 counts at 50mA
+	 *
+	 * @param ir
+	 * @param red
+	 */
+	public synchronized void setReflectance(double ir, double red) {
+		this.irReflectance = ir;
+		this.redReflectance = red;
+	}
+
+	/**
+	 * @param celsius
+	 *            die temperature returned by the temperature conversion
+	 */
+	public synchronized void setTemperature(double celsius) {
+		this.temperature = celsius;
+	}
+
+	/**
+	 * Latch signalled when an enabled interrupt is raised, stands for the INT
+	 * pin
+	 *
+	 * @param latch
+	 */
+	public synchronized void setInterruptLatch(TiMAX30100_InterruptLatch latch) {
+		this.interruptLatch = latch;
+	}
+
+	/**
+	 * Number of I2C read / write transactions
+	 *
+	 * @return
+	 */
+	public synchronized long getTransactionCount() {
+		return transactionCount;
+	}
+
+	/**
+	 * Number of register bytes read and written
+	 *
+	 * @return
+	 */
+	public synchronized long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * Number of samples generated since power on
+	 *
+	 * @return
+	 */
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Number of samples currently held in the FIFO
+	 *
+	 * @return
+	 */
+	public synchronized int getFifoCount() {
+		return fifoCount;
+	}
+
+	public void setWorkBaudrate(int baudrate) throws IOException {
+
+	}
+
+	public synchronized void read(int address, int register, byte[] buffer, int offset, int length)
+			throws IOException {
+		checkAddress(address);
+		sync();
+
+		transactionCount++;
+		bytesTransferred += length;
+
+		for (int i = 0; i < length; i++) {
+			// FIFO DATA burst read does not auto increment the address
+			int reg = register == TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA ? register : (register + i) & 0xFF;
+			buffer[offset + i] = readRegister(reg);
+		}
+	}
+
+	public synchronized void write(int address, int register, byte[] buffer, int offset, int length)
+			throws IOException {
+		checkAddress(address);
+		sync();
+
+		transactionCount++;
+		bytesTransferred += length;
+
+		for (int i = 0; i < length; i++) {
+			writeRegister((register + i) & 0xFF, buffer[offset + i] & 0xFF);
+		}
+	}
+
+	private void checkAddress(int address) throws IOException {
+		if (address != slaveAddress) {
+			throw new IOException("no ACK from address " + address);
+		}
+	}
+
+	private byte readRegister(int reg) {
+		switch (reg) {
+		case TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS: {
+			// cleared on read
+			byte status = registers[reg];
+			registers[reg] = 0;
+			return status;
+		}
+
+		case TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA:
+			return readFifoByte();
+
+		default:
+			return registers[reg];
+		}
+	}
+
+	private void writeRegister(int reg, int value) {
+		switch (reg) {
+		case TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS:
+		case TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA:
+		case TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_INT:
+		case TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_FRAC:
+		case TiMAX30100Regsiters.MAX30100_REG_REVISION_ID:
+		case TiMAX30100Regsiters.MAX30100_REG_PART_ID:
+			// read only
+			break;
+
+		case TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER:
+		case TiMAX30100Regsiters.MAX30100_REG_FIFO_READ_POINTER:
+			registers[reg] = (byte) (value & (TiMAX30100.MAX30100_FIFO_DEPTH - 1));
+			updateFifoCount();
+			break;
+
+		case TiMAX30100Regsiters.MAX30100_REG_FIFO_OVERFLOW_COUNTER:
+			registers[reg] = (byte) (value & 0x0f);
+			break;
+
+		case TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION:
+			if ((value & TiMAX30100.MAX30100_MC_RESET) != 0) {
+				powerOnReset();
+				break;
+			}
+
+			if ((value & TiMAX30100.MAX30100_MC_TEMP_EN) != 0 && temperatureReadyTime < 0) {
+				temperatureReadyTime = simTime + TEMPERATURE_CONVERSION_TIME;
+			}
+
+			if ((value & TiMAX30100.MAX30100_MC_SHDN) != 0) {
+				// interrupts are cleared in power-save mode
+				registers[TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS] = 0;
+			} else if ((registers[reg] & TiMAX30100.MAX30100_MC_SHDN) != 0) {
+				nextSampleTime = simTime + getSamplePeriod();
+			}
+
+			registers[reg] = (byte) value;
+			break;
+
+		default:
+			registers[reg] = (byte) value;
+			break;
+		}
+	}
+
+	private void powerOnReset() {
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = 0;
+		}
+
+		registers[TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS] = (byte) TiMAX30100.MAX30100_INT_PWR_RDY;
+		registers[TiMAX30100Regsiters.MAX30100_REG_REVISION_ID] = (byte) REVISION_ID;
+		registers[TiMAX30100Regsiters.MAX30100_REG_PART_ID] = (byte) TiMAX30100.EXPECTED_PART_ID;
+
+		fifoCount = 0;
+		temperatureReadyTime = -1;
+		nextSampleTime = simTime + getSamplePeriod();
+	}
+
+	// bring the simulated clock up to date with the wall clock
+	private void sync() {
+		if (!realTime) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if (lastWallTime >= 0 && now > lastWallTime) {
+			step(simTime + (now - lastWallTime) * 1000);
+		}
+		lastWallTime = now;
+	}
+
+	private void step(long until) {
+		while (true) {
+			long next = nextSampleTime;
+			if (temperatureReadyTime >= 0 && temperatureReadyTime < next) {
+				next = temperatureReadyTime;
+			}
+
+			if (next > until) {
+				break;
+			}
+
+			simTime = next;
+
+			if (next == temperatureReadyTime) {
+				completeTemperature();
+			} else {
+				if (isSampling()) {
+					generateSample();
+				}
+				nextSampleTime += getSamplePeriod();
+			}
+		}
+
+		simTime = until;
+	}
+
+	private boolean isSampling() {
+		int mode = registers[TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION] & 0xFF;
+		if ((mode & TiMAX30100.MAX30100_MC_SHDN) != 0) {
+			return false;
+		}
+
+		mode &= 0x07;
+		return mode == TiMAX30100.MAX30100_MODE_HRONLY || mode == TiMAX30100.MAX30100_MODE_SPO2_HR;
+	}
+
+	private void completeTemperature() {
+		temperatureReadyTime = -1;
+
+		double t = Math.floor(temperature * 16) / 16;
+		int integer = (int) Math.floor(t);
+		int frac = (int) ((t - integer) * 16);
+
+		registers[TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_INT] = (byte) integer;
+		registers[TiMAX30100Regsiters.MAX30100_REG_TEMPERATURE_DATA_FRAC] = (byte) frac;
+		registers[TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION] &= ~TiMAX30100.MAX30100_MC_TEMP_EN;
+
+		raiseInterrupt(TiMAX30100.MAX30100_INT_TEMP_RDY);
+	}
+
+	private void generateSample() {
+		int spo2Config = registers[TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION] & 0xFF;
+		int ledConfig = registers[TiMAX30100Regsiters.MAX30100_REG_LED_CONFIGURATION] & 0xFF;
+		int mode = registers[TiMAX30100Regsiters.MAX30100_REG_MODE_CONFIGURATION] & 0x07;
+
+		double sampleRate = TiMAX30100.getSamplingRateHz((spo2Config >> 2) & 0x07);
+		double t = sampleCount / sampleRate;
+
+		phase += heartRate / 60.0 / sampleRate;
+		if (phase >= 1) {
+			phase -= 1;
+		}
+
+		double pulse = pulseShape(phase);
+		double motion = motionAmplitude * Math.sin(2 * Math.PI * motionFrequency * t);
+
+		// R = (ACred/DCred) / (ACir/DCir), SpO2 = 110 - 25R
+		double ratio = (110 - spO2) / 25;
+
+		double irDC = FULL_CURRENT_DC * irReflectance * TiMAX30100.getLedCurrentMa(ledConfig & 0x0f) / 50;
+		double ir = irDC * (1 - perfusionIndex * pulse) + motion + noise * random.nextGaussian();
+
+		double red = 0;
+		if (mode == TiMAX30100.MAX30100_MODE_SPO2_HR) {
+			double redDC = FULL_CURRENT_DC * redReflectance * TiMAX30100.getLedCurrentMa((ledConfig >> 4) & 0x0f) / 50;
+			red = redDC * (1 - perfusionIndex * ratio * pulse) + motion * 0.8 + noise * random.nextGaussian();
+		}
+
+		int bits = ADC_BITS[spo2Config & 0x03];
+		pushSample(quantize(ir, bits), quantize(red, bits));
+		sampleCount++;
+
+		raiseInterrupt(mode == TiMAX30100.MAX30100_MODE_SPO2_HR ? TiMAX30100.MAX30100_INT_SPO2_RDY
+				: TiMAX30100.MAX30100_INT_HR_RDY);
+	}
+
+	// systolic peak followed by a dicrotic wave, 0..1
+	private static double pulseShape(double phase) {
+		double systolic = (phase - 0.2) / 0.08;
+		double dicrotic = (phase - 0.55) / 0.1;
+		return Math.exp(-systolic * systolic) + 0.4 * Math.exp(-dicrotic * dicrotic);
+	}
+
+	// values are left-aligned, lower bits are zero below 16 bits resolution
+	private static int quantize(double value, int bits) {
+		int v = (int) Math.round(value);
+		if (v < 0) {
+			v = 0;
+		} else if (v > 0xFFFF) {
+			v = 0xFFFF;
+		}
+
+		return v & (0xFFFF << (16 - bits)) & 0xFFFF;
+	}
+
+	private void pushSample(int ir, int red) {
+		if (fifoCount == TiMAX30100.MAX30100_FIFO_DEPTH) {
+			// FIFO full, the sample is lost
+			int overflow = registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_OVERFLOW_COUNTER] & 0xFF;
+			if (overflow < 0x0f) {
+				registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_OVERFLOW_COUNTER] = (byte) (overflow + 1);
+			}
+			return;
+		}
+
+		int writePointer = registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER] & 0xFF;
+		int pos = writePointer * 4;
+		fifo[pos] = (byte) (ir >> 8);
+		fifo[pos + 1] = (byte) ir;
+		fifo[pos + 2] = (byte) (red >> 8);
+		fifo[pos + 3] = (byte) red;
+
+		registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER] = (byte) ((writePointer + 1)
+				& (TiMAX30100.MAX30100_FIFO_DEPTH - 1));
+		fifoCount++;
+
+		if (fifoCount == TiMAX30100.MAX30100_FIFO_DEPTH - 1) {
+			raiseInterrupt(TiMAX30100.MAX30100_INT_A_FULL);
+		}
+	}
+
+	private byte readFifoByte() {
+		if (fifoCount == 0) {
+			return 0;
+		}
+
+		int readPointer = registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_READ_POINTER] & 0xFF;
+		byte value = fifo[readPointer * 4 + fifoByteIndex];
+
+		if (++fifoByteIndex == 4) {
+			fifoByteIndex = 0;
+			registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_READ_POINTER] = (byte) ((readPointer + 1)
+					& (TiMAX30100.MAX30100_FIFO_DEPTH - 1));
+			fifoCount--;
+			// reading the FIFO clears the overflow counter
+			registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_OVERFLOW_COUNTER] = 0;
+		}
+
+		return value;
+	}
+
+	private void updateFifoCount() {
+		int writePointer = registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER] & 0xFF;
+		int readPointer = registers[TiMAX30100Regsiters.MAX30100_REG_FIFO_READ_POINTER] & 0xFF;
+		fifoCount = (writePointer - readPointer) & (TiMAX30100.MAX30100_FIFO_DEPTH - 1);
+		fifoByteIndex = 0;
+	}
+
+	private void raiseInterrupt(int bit) {
+		registers[TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_STATUS] |= (byte) bit;
+
+		int enabled = registers[TiMAX30100Regsiters.MAX30100_REG_INTERRUPT_ENABLE] & 0xFF;
+		if ((enabled & bit) != 0 && interruptLatch != null) {
+			interruptLatch.signal();
+		}
+	}
+
+	// in us
+	private long getSamplePeriod() {
+		int spo2Config = registers[TiMAX30100Regsiters.MAX30100_REG_SPO2_CONFIGURATION] & 0xFF;
+		return 1000000L / TiMAX30100.getSamplingRateHz((spo2Config >> 2) & 0x07);
+	}
+}
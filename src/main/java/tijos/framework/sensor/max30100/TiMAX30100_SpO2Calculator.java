@@ -1,62 +1,248 @@
 package tijos.framework.sensor.max30100;
 
+/**
+ * Sliding-window SpO2 estimator. <br>
+ * The squared AC values of the last windowLength samples are kept in a
+ * circular buffer with running sums, so each sample is added in O(1) and the
+ * window never restarts from zero. A new SpO2 is published every N beats
+ * and/or every N samples.
+ */
 public class TiMAX30100_SpO2Calculator {
 
 	private static final int CALCULATE_EVERY_N_BEATS = 3;
 
-	// SaO2 Look-up Table
-	// http://www.ti.com/lit/an/slaa274b/slaa274b.pdf
-	static byte[] spO2LUT = new byte[] {100,100,100,100,
-			99,99,99,99,99,99,
-			98,98,98,98,98,
-			97,97,97,97,97,97,
-			96,96,96,96,96,96,
-			95,95,95,95,95,95,
-			94,94,94,94,94,
-			93,93,93,93,93};
+	/**
+	 * Default window length in samples, 3 seconds at 100Hz
+	 */
+	public static final int DEFAULT_WINDOW_LENGTH = 300;
+
+	// squared AC contributions of the window
+	float[] irACSq;
+	float[] redACSq;
+	int windowPos = 0;
+	int windowFill = 0;
 
 	double irACValueSqSum = 0;
 	double redACValueSqSum = 0;
+
+	int updateEveryBeats = CALCULATE_EVERY_N_BEATS;
+	int updateEverySamples = 0;
+
+	TiMAX30100_SpO2Curve curve = new TiMAX30100_SpO2LutCurve();
+	boolean fixedPoint = false;
+	int ratio = 0;
+
+	// temperature compensation of the ratio, Q16 factor
+	double temperatureCoefficient = 0;
+	double referenceTemperature = 25;
+	long temperatureFactor = 1 << 16;
+
 	int beatsDetectedNum = 0;
 	long samplesRecorded = 0;
 	int spO2 = 0;
 
 	public TiMAX30100_SpO2Calculator() {
+		this(DEFAULT_WINDOW_LENGTH);
+	}
+
+	/**
+	 * @param windowLength
+	 *            number of samples the SpO2 is computed on
+	 */
+	public TiMAX30100_SpO2Calculator(int windowLength) {
+		setWindowLength(windowLength);
+	}
+
+	/**
+	 * Number of samples the SpO2 is computed on, clears the window
+	 *
+	 * @param windowLength
+	 */
+	public void setWindowLength(int windowLength) {
+		if (windowLength <= 0) {
+			throw new IllegalArgumentException("window length " + windowLength);
+		}
+
+		irACSq = new float[windowLength];
+		redACSq = new float[windowLength];
+		reset();
+	}
+
+	public int getWindowLength() {
+		return irACSq.length;
+	}
+
+	/**
+	 * Publishing cadence, the SpO2 is computed again when either condition is
+	 * met
+	 *
+	 * @param beats
+	 *            every N detected beats, 0 to disable
+	 * @param samples
+	 *            every N samples, 0 to disable
+	 */
+	public void setUpdateInterval(int beats, int samples) {
+		if (beats < 0 || samples < 0 || (beats == 0 && samples == 0)) {
+			throw new IllegalArgumentException("update interval " + beats + "/" + samples);
+		}
+
+		this.updateEveryBeats = beats;
+		this.updateEverySamples = samples;
+	}
+
+	/**
+	 * Calibration of the ratio to SpO2 mapping, the default is the TI
+	 * look-up table
+	 *
+	 * @param curve
+	 */
+	public void setCurve(TiMAX30100_SpO2Curve curve) {
+		if (curve == null) {
+			throw new IllegalArgumentException("curve");
+		}
+
+		this.curve = curve;
+	}
+
+	public TiMAX30100_SpO2Curve getCurve() {
+		return curve;
+	}
+
+	/**
+	 * Compute the ratio with integer logarithms instead of Math.log, which is
+	 * the costly part on MCUs without fast floating point. Only the
+	 * logarithms are integer: the squared AC values and their running sums
+	 * stay floating point, as does the DSP chain feeding them.
+	 *
+	 * @param enable
+	 */
+	public void setFixedPoint(boolean enable) {
+		this.fixedPoint = enable;
+	}
 
+	/**
+	 * Compensate the drift of the LED wavelengths with the temperature, the
+	 * ratio is multiplied by 1 + coefficient * (T - reference) before the
+	 * calibration curve
+	 *
+	 * @param coefficient
+	 *            relative ratio change per degree Celsius, 0 to disable
+	 * @param reference
+	 *            temperature of the calibration, degree Celsius
+	 */
+	public void setTemperatureCompensation(double coefficient, double reference) {
+		this.temperatureCoefficient = coefficient;
+		this.referenceTemperature = reference;
+		this.temperatureFactor = 1 << 16;
 	}
 
-	public void update(double irACValue, double redACValue, boolean beatDetected) {
-		irACValueSqSum += irACValue * irACValue;
-		redACValueSqSum += redACValue * redACValue;
+	/**
+	 * Current LED temperature for the compensation
+	 *
+	 * @param celsius
+	 */
+	public void setTemperature(double celsius) {
+		temperatureFactor = Math.round((1 + temperatureCoefficient * (celsius - referenceTemperature)) * 65536);
+	}
+
+	/**
+	 * Last computed R ratio in Q16, the input of the calibration curve
+	 *
+	 * @return
+	 */
+	public int getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * Add a sample
+	 *
+	 * @param irACValue
+	 * @param redACValue
+	 * @param beatDetected
+	 * @return true if the SpO2 has been computed again
+	 */
+	public boolean update(double irACValue, double redACValue, boolean beatDetected) {
+		float irSq = (float) (irACValue * irACValue);
+		float redSq = (float) (redACValue * redACValue);
+
+		if (windowFill == irACSq.length) {
+			irACValueSqSum -= irACSq[windowPos];
+			redACValueSqSum -= redACSq[windowPos];
+		} else {
+			windowFill++;
+		}
+
+		irACSq[windowPos] = irSq;
+		redACSq[windowPos] = redSq;
+		irACValueSqSum += irSq;
+		redACValueSqSum += redSq;
+
+		if (++windowPos == irACSq.length) {
+			windowPos = 0;
+			// once per window, drop the rounding drift of the running sums
+			resum();
+		}
+
 		++samplesRecorded;
 
-		if (beatDetected) {
-			++beatsDetectedNum;
-			if (beatsDetectedNum == CALCULATE_EVERY_N_BEATS) {
-				double acSqRatio = Math.log(redACValueSqSum / samplesRecorded)
-						/ Math.log(irACValueSqSum / samplesRecorded);
-				
-				acSqRatio *= 100.0;
-				int index = 0;
-
-				if (acSqRatio > 66) {
-					index = (int) acSqRatio - 66;
-				} else if (acSqRatio > 50) {
-					index = (int) acSqRatio - 50;
-				}
-				reset();
-
-				if(index < spO2LUT.length)
-					spO2 = spO2LUT[index];
+		boolean due = false;
+		if (beatDetected && updateEveryBeats > 0 && ++beatsDetectedNum >= updateEveryBeats) {
+			due = true;
+		}
+		if (updateEverySamples > 0 && samplesRecorded >= updateEverySamples) {
+			due = true;
+		}
+
+		// wait for a full window
+		if (!due || windowFill < irACSq.length) {
+			return false;
+		}
+
+		beatsDetectedNum = 0;
+		samplesRecorded = 0;
+
+		double redMeanSq = redACValueSqSum / windowFill;
+		double irMeanSq = irACValueSqSum / windowFill;
+		ratio = fixedPoint ? ratioFixed(redMeanSq, irMeanSq) : ratioDouble(redMeanSq, irMeanSq);
+		ratio = (int) ((ratio * temperatureFactor) >> 16);
+		spO2 = ratio > 0 ? curve.getSpO2(ratio) : 0;
+
+		return true;
+	}
+
+	/**
+	 * Remove the most recent samples from the window, e.g. once they turn
+	 * out to be corrupted by motion. The window must fill again before the
+	 * next SpO2.
+	 *
+	 * @param samples
+	 */
+	public void discard(int samples) {
+		int n = Math.min(samples, windowFill);
+		for (int i = 0; i < n; i++) {
+			if (--windowPos < 0) {
+				windowPos = irACSq.length - 1;
 			}
+			irACValueSqSum -= irACSq[windowPos];
+			redACValueSqSum -= redACSq[windowPos];
 		}
+
+		windowFill -= n;
+		samplesRecorded = Math.max(0, samplesRecorded - n);
 	}
 
+	/**
+	 * Clear the window and invalidate the SpO2, called when the signal is lost
+	 */
 	public void reset() {
 		samplesRecorded = 0;
 		redACValueSqSum = 0;
 		irACValueSqSum = 0;
 		beatsDetectedNum = 0;
+		windowPos = 0;
+		windowFill = 0;
+		ratio = 0;
 		spO2 = 0;
 	}
 
@@ -64,4 +250,68 @@ public class TiMAX30100_SpO2Calculator {
 		return spO2;
 	}
 
+	/**
+	 * log(redMeanSq) / log(irMeanSq) in Q16, 0 if undefined
+	 */
+	static int ratioDouble(double redMeanSq, double irMeanSq) {
+		if (redMeanSq <= 1 || irMeanSq <= 1) {
+			return 0;
+		}
+
+		return (int) (Math.log(redMeanSq) / Math.log(irMeanSq) * 65536);
+	}
+
+	/**
+	 * Same as ratioDouble with integer base 2 logarithms, the mean squares are
+	 * taken in Q8 to keep the fractional part of small signals
+	 */
+	static int ratioFixed(double redMeanSq, double irMeanSq) {
+		long red = (long) (redMeanSq * 256);
+		long ir = (long) (irMeanSq * 256);
+
+		if (red <= 256 || ir <= 256) {
+			return 0;
+		}
+
+		long redLog = log2(red) - (8L << 16);
+		long irLog = log2(ir) - (8L << 16);
+
+		return (int) ((redLog << 16) / irLog);
+	}
+
+	/**
+	 * Base 2 logarithm in Q16 of a positive integer
+	 */
+	static int log2(long x) {
+		int n = 63 - Long.numberOfLeadingZeros(x);
+
+		// mantissa in [1, 2) as Q30
+		long y = n > 30 ? x >> (n - 30) : x << (30 - n);
+		int log = n << 16;
+
+		for (int bit = 1 << 15; bit != 0; bit >>= 1) {
+			y = (y * y) >> 30;
+			if (y >= (2L << 30)) {
+				y >>= 1;
+				log |= bit;
+			}
+		}
+
+		return log;
+	}
+
+	private void resum() {
+		double irSum = 0;
+		double redSum = 0;
+		// the window ends just before windowPos
+		for (int i = 0, pos = windowPos; i < windowFill; i++) {
+			if (--pos < 0) {
+				pos = irACSq.length - 1;
+			}
+			irSum += irACSq[pos];
+			redSum += redACSq[pos];
+		}
+		irACValueSqSum = irSum;
+		redACValueSqSum = redSum;
+	}
 }
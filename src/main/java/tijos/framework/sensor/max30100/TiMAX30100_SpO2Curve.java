@@ -0,0 +1,18 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Calibration curve mapping the R ratio to SpO2, see
+ * {@link TiMAX30100_SpO2Calculator#setCurve}
+ * 
+ * @author TiJOS
+ *
+ */
+public interface TiMAX30100_SpO2Curve {
+
+	/**
+	 * @param ratio
+	 *            R ratio in Q16 fixed point (ratio * 65536)
+	 * @return SpO2 in %, 0 if the ratio is outside the calibrated range
+	 */
+	int getSpO2(int ratio);
+}
@@ -0,0 +1,69 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Look-up table calibration, one SpO2 entry per percent of R ratio
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SpO2LutCurve implements TiMAX30100_SpO2Curve {
+
+	/**
+	 * Ratio in % of the first entry of the default table
+	 */
+	public static final int DEFAULT_RATIO_OFFSET = 66;
+
+	// SaO2 Look-up Table
+	// http://www.ti.com/lit/an/slaa274b/slaa274b.pdf
+	static final byte[] DEFAULT_LUT = new byte[] {100,100,100,100,
+			99,99,99,99,99,99,
+			98,98,98,98,98,
+			97,97,97,97,97,97,
+			96,96,96,96,96,96,
+			95,95,95,95,95,95,
+			94,94,94,94,94,
+			93,93,93,93,93};
+
+	private byte[] table;
+	private int ratioOffset;
+
+	/**
+	 * Default table
+	 */
+	public TiMAX30100_SpO2LutCurve() {
+		this(DEFAULT_LUT, DEFAULT_RATIO_OFFSET);
+	}
+
+	/**
+	 * Per device table
+	 * 
+	 * @param table
+	 *            SpO2 for each percent of ratio, copied
+	 * @param ratioOffset
+	 *            ratio in % of the first entry, lower ratios read the first
+	 *            entry
+	 */
+	public TiMAX30100_SpO2LutCurve(byte[] table, int ratioOffset) {
+		if (table.length == 0) {
+			throw new IllegalArgumentException("empty table");
+		}
+
+		this.table = new byte[table.length];
+		System.arraycopy(table, 0, this.table, 0, table.length);
+		this.ratioOffset = ratioOffset;
+	}
+
+	public int getSpO2(int ratio) {
+		int index = (int) (((long) ratio * 100) >> 16) - ratioOffset;
+
+		if (index < 0) {
+			return table[0];
+		}
+
+		if (index < table.length) {
+			return table[index];
+		}
+
+		return 0;
+	}
+}
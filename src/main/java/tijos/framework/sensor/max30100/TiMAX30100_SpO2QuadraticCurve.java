@@ -0,0 +1,54 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Quadratic calibration SpO2 = a + b * R + c * R^2, evaluated in fixed point
+ * 
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SpO2QuadraticCurve implements TiMAX30100_SpO2Curve {
+
+	// coefficients in Q16
+	private long a;
+	private long b;
+	private long c;
+
+	private int minRatio;
+	private int maxRatio;
+
+	/**
+	 * @param a
+	 * @param b
+	 * @param c
+	 *            coefficients of the curve
+	 * @param minRatio
+	 * @param maxRatio
+	 *            calibrated ratio range, other ratios read 0
+	 */
+	public TiMAX30100_SpO2QuadraticCurve(double a, double b, double c, double minRatio, double maxRatio) {
+		if (minRatio >= maxRatio) {
+			throw new IllegalArgumentException("ratio range " + minRatio + "-" + maxRatio);
+		}
+
+		this.a = Math.round(a * 65536);
+		this.b = Math.round(b * 65536);
+		this.c = Math.round(c * 65536);
+		this.minRatio = (int) Math.round(minRatio * 65536);
+		this.maxRatio = (int) Math.round(maxRatio * 65536);
+	}
+
+	public int getSpO2(int ratio) {
+		if (ratio < minRatio || ratio > maxRatio) {
+			return 0;
+		}
+
+		long spO2 = a + ((b * ratio) >> 16) + ((((c * ratio) >> 16) * ratio) >> 16);
+		int value = (int) ((spO2 + 0x8000) >> 16);
+
+		if (value < 0) {
+			return 0;
+		}
+
+		return value > 100 ? 100 : value;
+	}
+}
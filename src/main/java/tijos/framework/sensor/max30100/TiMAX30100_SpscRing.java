@@ -0,0 +1,163 @@
+package tijos.framework.sensor.max30100;
+
+/**
+ * Lock-free single-producer / single-consumer IR/Red sample ring. <br>
+ * One thread only calls {@link #offer(int[], int[], int, int)}, another one
+ * only calls {@link #poll(int[], int[], int, int)}; the indexes are published
+ * through volatile fields so no lock is taken on either side. Samples which do
+ * not fit are dropped and counted.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_SpscRing {
+
+	// interleaved IR, Red
+	private final int[] samples;
+	private final int mask;
+
+	// monotonic, written by the producer only
+	private volatile int tail = 0;
+	// monotonic, written by the consumer only
+	private volatile int head = 0;
+
+	// producer side statistics
+	private volatile long offeredCount = 0;
+	private volatile long droppedCount = 0;
+	private volatile int highWaterMark = 0;
+
+	// consumer side statistics
+	private volatile long emptyPollCount = 0;
+
+	/**
+	 * @param capacity
+	 *            number of sample pairs, rounded up to a power of two
+	 */
+	public TiMAX30100_SpscRing(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		this.samples = new int[size * 2];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Producer side, store samples
+	 *
+	 * @param ir
+	 * @param red
+	 * @param off
+	 * @param count
+	 * @return number of samples stored, the others are dropped
+	 */
+	public int offer(int[] ir, int[] red, int off, int count) {
+		int t = tail;
+		int used = t - head;
+		int free = (mask + 1) - used;
+		int n = Math.min(count, free);
+
+		for (int i = 0; i < n; i++) {
+			int pos = ((t + i) & mask) * 2;
+			samples[pos] = ir[off + i];
+			samples[pos + 1] = red[off + i];
+		}
+
+		// publish after the data is written
+		tail = t + n;
+
+		offeredCount += count;
+		if (n < count) {
+			droppedCount += count - n;
+		}
+		if (used + n > highWaterMark) {
+			highWaterMark = used + n;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Consumer side, take samples
+	 *
+	 * @param ir
+	 * @param red
+	 * @param off
+	 * @param max
+	 * @return number of samples copied
+	 */
+	public int poll(int[] ir, int[] red, int off, int max) {
+		int h = head;
+		int n = Math.min(max, tail - h);
+
+		if (n <= 0) {
+			emptyPollCount++;
+			return 0;
+		}
+
+		for (int i = 0; i < n; i++) {
+			int pos = ((h + i) & mask) * 2;
+			ir[off + i] = samples[pos];
+			red[off + i] = samples[pos + 1];
+		}
+
+		// release the slots after the data is read
+		head = h + n;
+
+		return n;
+	}
+
+	/**
+	 * Number of samples waiting for the consumer
+	 *
+	 * @return
+	 */
+	public int size() {
+		return tail - head;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Number of samples offered by the producer
+	 *
+	 * @return
+	 */
+	public long getOfferedCount() {
+		return offeredCount;
+	}
+
+	/**
+	 * Number of samples dropped because the consumer fell behind
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Highest number of samples waiting for the consumer
+	 *
+	 * @return
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Number of consumer polls which found the ring empty
+	 *
+	 * @return
+	 */
+	public long getEmptyPollCount() {
+		return emptyPollCount;
+	}
+}
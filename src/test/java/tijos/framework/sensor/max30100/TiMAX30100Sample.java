@@ -2,6 +2,8 @@ package tijos.framework.sensor.max30100;
 
 import java.io.IOException;
 
+import tijos.framework.devicecenter.ITiGPIOEventListener;
+import tijos.framework.devicecenter.TiGPIO;
 import tijos.framework.devicecenter.TiI2CMaster;
 import tijos.framework.sensor.max30100.TiMAX30100;
 
@@ -14,11 +16,31 @@ public class TiMAX30100Sample {
 			 */
 			int i2cPort0 = 0;
 
+			/*
+			 * 定义MAX30100 INT引脚连接的GPIO port和pin
+			 */
+			int gpioPort0 = 0;
+			int gpioPin0 = 2;
+
 			/*
 			 * 资源分配， 将i2cPort0分配给TiI2CMaster对象i2c0
 			 */
 			TiI2CMaster i2c0 = TiI2CMaster.open(i2cPort0);
 
+			/*
+			 * INT引脚为开漏低电平有效，下降沿触发事件
+			 */
+			TiGPIO gpio0 = TiGPIO.open(gpioPort0, gpioPin0);
+			gpio0.setWorkMode(gpioPin0, TiGPIO.INPUT_PULLUP);
+			gpio0.setEventParameters(gpioPin0, TiGPIO.EVT_FALLING);
+
+			final TiMAX30100_InterruptLatch intLatch = new TiMAX30100_InterruptLatch();
+			gpio0.setEventListener(new ITiGPIOEventListener() {
+				public void onEvent(TiGPIO gpio, int pin) {
+					intLatch.signal();
+				}
+			});
+
 			TiMAX30100 sensor = new TiMAX30100(i2c0);
 			sensor.initialize();
 			
@@ -30,10 +52,14 @@ public class TiMAX30100Sample {
 		    sensor.setHighresModeEnabled(true);
 		    sensor.resetFifo();
 
+		    // Drain the FIFO only when it is almost full
+		    sensor.setInterruptSource(intLatch);
+		    sensor.setInterruptsEnabled(TiMAX30100.MAX30100_INT_A_FULL);
+
 			while (true) {
 				try {
 					
-					int sampleNumber = sensor.update();
+					int sampleNumber = sensor.updateOnInterrupt(1000);
 					while(sampleNumber-- > 0){
 						System.out.println("IR=  "  + sensor.getIR());
 						System.out.println("Red= "  + sensor.getRed());
@@ -0,0 +1,309 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Signal processing hot path benchmark, run on a desktop JVM:
+ *
+ * <pre>
+ * java TiMAX30100_Benchmark [recording.csv]
+ * </pre>
+ *
+ * Each stage is warmed up then measured over the synthetic (or recorded)
+ * sample set, results are ns/sample and allocated bytes/sample.
+ */
+public class TiMAX30100_Benchmark {
+
+	private static final int SAMPLES = 100000;
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	private static int[] ir;
+	private static int[] red;
+	private static int count;
+
+	// keeps the JIT from removing the measured code
+	private static double sink;
+
+	interface Stage {
+		void run();
+	}
+
+	// samples per benchmarked drain: the FIFO pointers tell at most 15
+	// samples without an overflow
+	private static final int DRAIN_SAMPLES = TiMAX30100.MAX30100_FIFO_DEPTH - 1;
+
+	/*
+	 * Bus returning a FIFO as full as it gets without overflow on every
+	 * drain, isolates the driver decoding from the simulator
+	 */
+	static class FullFifoBus implements TiMAX30100_I2CBus {
+		private byte[] words = new byte[TiMAX30100.MAX30100_FIFO_DEPTH * 4];
+
+		FullFifoBus() {
+			for (int i = 0; i < TiMAX30100.MAX30100_FIFO_DEPTH; i++) {
+				words[i * 4] = (byte) (ir[i] >> 8);
+				words[i * 4 + 1] = (byte) ir[i];
+				words[i * 4 + 2] = (byte) (red[i] >> 8);
+				words[i * 4 + 3] = (byte) red[i];
+			}
+		}
+
+		public void setWorkBaudrate(int baudrate) throws IOException {
+
+		}
+
+		public void read(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+			if (register == TiMAX30100Regsiters.MAX30100_REG_FIFO_DATA) {
+				System.arraycopy(words, 0, buffer, offset, length);
+			} else {
+				// write pointer 15, overflow 0, read pointer 0: 15 samples
+				for (int i = 0; i < length; i++) {
+					buffer[offset + i] = (byte) (register + i == TiMAX30100Regsiters.MAX30100_REG_FIFO_WRITE_POINTER
+							? DRAIN_SAMPLES : 0);
+				}
+			}
+		}
+
+		public void write(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			loadCsv(args[0]);
+			System.out.println("input: " + args[0] + ", " + count + " samples");
+		} else {
+			generate();
+			System.out.println("input: synthetic, " + count + " samples");
+		}
+
+		final double[] irAC = new double[count];
+		final double[] redAC = new double[count];
+		final double[] filtered = new double[count];
+		final boolean[] beats = new boolean[count];
+
+		// precompute the intermediate signals feeding the later stages
+		for (int i = 0; i < count; i++) {
+			irAC[i] = ir[i];
+			redAC[i] = red[i];
+		}
+		TiMAX30100_DspChain.dcRemover(0.95).process(irAC, 0, count);
+		TiMAX30100_DspChain.dcRemover(0.95).process(redAC, 0, count);
+		for (int i = 0; i < count; i++) {
+			filtered[i] = -irAC[i];
+		}
+		TiMAX30100_DspChain.firstOrderLowPass(100, 10).process(filtered, 0, count);
+		TiMAX30100_BeatDetector detector = new TiMAX30100_BeatDetector();
+		for (int i = 0; i < count; i++) {
+			beats[i] = detector.addSample(filtered[i]);
+		}
+
+		final double[] block = new double[TiMAX30100.MAX30100_FIFO_DEPTH];
+
+		measure("DcRemover.process", count, new Stage() {
+			TiMAX30100_DcRemover dc = TiMAX30100_DspChain.dcRemover(0.95);
+
+			public void run() {
+				sink += runBlocks(dc, ir, block);
+			}
+		});
+
+		measure("Biquad.process (first order)", count, new Stage() {
+			TiMAX30100_Biquad f = TiMAX30100_DspChain.firstOrderLowPass(100, 10);
+
+			public void run() {
+				sink += runBlocks(f, ir, block);
+			}
+		});
+
+		final int[] decimated = new int[count / 4 + 1];
+
+		measure("Decimator.process (CIC, R=4)", count, new Stage() {
+			TiMAX30100_Decimator d = new TiMAX30100_Decimator(4);
+
+			public void run() {
+				sink += d.process(ir, 0, count, decimated, 0);
+			}
+		});
+
+		measure("BeatDetector.addSample", count, new Stage() {
+			public void run() {
+				TiMAX30100_BeatDetector d = new TiMAX30100_BeatDetector();
+				int n = 0;
+				for (int i = 0; i < count; i++) {
+					if (d.addSample(filtered[i]))
+						n++;
+				}
+				sink += n;
+			}
+		});
+
+		measure("SignalQuality.addSample", count, new Stage() {
+			TiMAX30100_SignalQuality q = new TiMAX30100_SignalQuality();
+
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					q.addSample(ir[i], red[i], irAC[i], redAC[i]);
+				}
+				sink += q.getScore();
+			}
+		});
+
+		measure("SpO2Calculator.update", count, new Stage() {
+			TiMAX30100_SpO2Calculator c = new TiMAX30100_SpO2Calculator();
+
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					c.update(irAC[i], redAC[i], beats[i]);
+				}
+				sink += c.getSpO2();
+			}
+		});
+
+		final TiMAX30100 sensor = new TiMAX30100(new FullFifoBus());
+		final int[] drainIR = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		final int[] drainRed = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		final int drains = count / DRAIN_SAMPLES;
+
+		measure("TiMAX30100.update (FIFO decode)", drains * DRAIN_SAMPLES, new Stage() {
+			public void run() {
+				try {
+					for (int i = 0; i < drains; i++) {
+						int n = sensor.update();
+						sensor.readSamples(drainIR, drainRed, 0, n);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage());
+				}
+				sink += drainIR[0];
+			}
+		});
+
+		measure("TiMAX30100.readFifoSamples", drains * DRAIN_SAMPLES, new Stage() {
+			public void run() {
+				try {
+					for (int i = 0; i < drains; i++) {
+						sensor.readFifoSamples(drainIR, drainRed, 0, drainIR.length);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage());
+				}
+				sink += drainIR[0];
+			}
+		});
+
+		measure("PulseOximeter.process (full chain)", count, new Stage() {
+			public void run() {
+				TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(100);
+				for (int off = 0; off < count; off += TiMAX30100.MAX30100_FIFO_DEPTH) {
+					pox.process(ir, red, off, Math.min(TiMAX30100.MAX30100_FIFO_DEPTH, count - off));
+				}
+				sink += pox.getHeartRate();
+			}
+		});
+
+		System.out.println("(sink " + (long) sink + ")");
+	}
+
+	/*
+	 * Filter the samples by FIFO sized blocks as the pulse oximeter does
+	 */
+	private static double runBlocks(TiMAX30100_DspStage stage, int[] input, double[] block) {
+		double s = 0;
+		for (int off = 0; off < count; off += block.length) {
+			int n = Math.min(block.length, count - off);
+			for (int i = 0; i < n; i++) {
+				block[i] = input[off + i];
+			}
+			stage.process(block, 0, n);
+			s += block[0];
+		}
+		return s;
+	}
+
+	private static void measure(String name, int samples, Stage stage) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			stage.run();
+		}
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			stage.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		double nsPerSample = (double) elapsed / ROUNDS / samples;
+		double bytesPerSample = allocated < 0 ? -1 : (double) allocated / ROUNDS / samples;
+
+		System.out.println(pad(name, 40) + format(nsPerSample) + " ns/sample  " + format(bytesPerSample)
+				+ " B/sample");
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void generate() throws IOException {
+		ir = new int[SAMPLES];
+		red = new int[SAMPLES];
+
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+
+		TiMAX30100 sensor = new TiMAX30100(sim);
+		sensor.initialize();
+		sensor.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR);
+		sensor.setLedsCurrent(TiMAX30100.MAX30100_LED_CURR_50MA, TiMAX30100.MAX30100_LED_CURR_27_1MA);
+		sensor.resetFifo();
+
+		while (count < SAMPLES) {
+			sim.advanceSamples(TiMAX30100.MAX30100_FIFO_DEPTH / 2);
+			count += sensor.readFifoSamples(ir, red, count, SAMPLES - count);
+		}
+	}
+
+	private static void loadCsv(String file) throws IOException {
+		ir = new int[SAMPLES];
+		red = new int[SAMPLES];
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while (count < SAMPLES && (line = reader.readLine()) != null) {
+				int sep = line.indexOf(',');
+				if (sep < 0 || line.length() == 0 || !Character.isDigit(line.charAt(0))) {
+					continue;
+				}
+				ir[count] = Integer.parseInt(line.substring(0, sep).trim());
+				red[count] = Integer.parseInt(line.substring(sep + 1).trim());
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 10) / 10.0);
+	}
+
+	private static String pad(String s, int width) {
+		StringBuffer sb = new StringBuffer(s);
+		while (sb.length() < width) {
+			sb.append(' ');
+		}
+		return sb.toString();
+	}
+}
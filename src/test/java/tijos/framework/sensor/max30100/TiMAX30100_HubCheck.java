@@ -0,0 +1,125 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+/**
+ * Three simulated sensors behind one I2C multiplexer, each created with its
+ * own bus wrapper as the TiI2CMaster constructors do. Every sensor must only
+ * receive the samples of its own simulator:
+ *
+ * <pre>
+ * java TiMAX30100_HubCheck
+ * </pre>
+ */
+public class TiMAX30100_HubCheck {
+
+	private static final int SENSORS = 3;
+
+	/*
+	 * The multiplexer: routes the bus to the simulator of the selected
+	 * channel
+	 */
+	static class Mux implements TiMAX30100_I2CBus, TiMAX30100_MuxSelector {
+		TiMAX30100_Simulator[] channels;
+		int selected = 0;
+
+		Mux(TiMAX30100_Simulator[] channels) {
+			this.channels = channels;
+		}
+
+		public void select(int channel) throws IOException {
+			selected = channel;
+		}
+
+		public void setWorkBaudrate(int baudrate) throws IOException {
+
+		}
+
+		public void read(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+			channels[selected].read(address, register, buffer, offset, length);
+		}
+
+		public void write(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+			channels[selected].write(address, register, buffer, offset, length);
+		}
+	}
+
+	/*
+	 * A distinct bus object per sensor on the same port
+	 */
+	static class Wrapper implements TiMAX30100_I2CBus {
+		TiMAX30100_I2CBus port;
+
+		Wrapper(TiMAX30100_I2CBus port) {
+			this.port = port;
+		}
+
+		public void setWorkBaudrate(int baudrate) throws IOException {
+			port.setWorkBaudrate(baudrate);
+		}
+
+		public void read(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+			port.read(address, register, buffer, offset, length);
+		}
+
+		public void write(int address, int register, byte[] buffer, int offset, int length) throws IOException {
+			port.write(address, register, buffer, offset, length);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		TiMAX30100_Simulator[] sims = new TiMAX30100_Simulator[SENSORS];
+		for (int i = 0; i < SENSORS; i++) {
+			sims[i] = new TiMAX30100_Simulator();
+			// well separated DC levels tell the sensors apart
+			sims[i].setReflectance(0.2 + 0.3 * i, 0.5);
+		}
+
+		Mux mux = new Mux(sims);
+
+		final long[] sums = new long[SENSORS];
+		final long[] counts = new long[SENSORS];
+		TiMAX30100_Hub hub = new TiMAX30100_Hub(SENSORS, new TiMAX30100_HubListener() {
+			public void onSamples(int sensorId, int[] ir, int[] red, int count) {
+				for (int i = 0; i < count; i++) {
+					sums[sensorId] += ir[i];
+				}
+				counts[sensorId] += count;
+			}
+		});
+
+		for (int i = 0; i < SENSORS; i++) {
+			mux.select(i);
+			TiMAX30100 sensor = new TiMAX30100(new Wrapper(mux));
+			sensor.initialize();
+			sensor.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR);
+			sensor.setLedsCurrent(TiMAX30100.MAX30100_LED_CURR_27_1MA, TiMAX30100.MAX30100_LED_CURR_27_1MA);
+			sensor.resetFifo();
+			hub.addSensor(i, sensor, mux, i);
+		}
+
+		long end = System.currentTimeMillis() + 2000;
+		while (System.currentTimeMillis() < end) {
+			hub.poll();
+			Thread.sleep(Math.max(1, hub.pollIntervalHint()));
+		}
+
+		boolean ok = hub.getMuxSwitchCount() > SENSORS;
+		for (int i = 0; i < SENSORS; i++) {
+			double mean = counts[i] > 0 ? (double) sums[i] / counts[i] : 0;
+			System.out.println("sensor " + i + ": " + counts[i] + " samples, mean IR " + Math.round(mean));
+
+			ok &= counts[i] > 0;
+			if (i > 0) {
+				double previous = (double) sums[i - 1] / Math.max(1, counts[i - 1]);
+				ok &= mean > previous * 1.3;
+			}
+		}
+
+		System.out.println("mux switches " + hub.getMuxSwitchCount());
+		System.out.println(ok ? "PASS" : "FAIL");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
@@ -28,6 +28,25 @@ public class TiMAX30100_PulseOximeterSample {
 		
 		TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(i2c0);
 
+		// Print heart rate and oxidation levels only when they change
+		pox.setListener(new TiMAX30100_PulseOximeterListener() {
+			public void onBeatDetected(long timestamp) {
+			}
+
+			public void onHeartRateUpdated(double heartRate) {
+				System.out.println("heart " + (int) heartRate);
+			}
+
+			public void onSpO2Updated(int spO2) {
+				if (spO2 > 0)
+					System.out.println("spO2 " + spO2);
+			}
+
+			public void onSignalLost() {
+				System.out.println("signal lost");
+			}
+		});
+
 		try {
 			// Initialize the PulseOximeter instance
 			// Failures are generally due to an improper I2C wiring, missing
@@ -35,18 +54,10 @@ public class TiMAX30100_PulseOximeterSample {
 			pox.initialize();
 
 			while (true) {
-				// Make sure to call update as fast as possible
+				// Call update often enough to keep the sensor FIFO from overflowing
 				pox.update();
-				// Asynchronously dump heart rate and oxidation levels to the serial 
-				//For both, a value of 0 means "invalid"
-				double hr = pox.getHeartRate();
-				if(hr > 1)
-					System.out.println("heart " + (int)hr);
-
-				double spO2 = pox.getSpO2();
-				if(spO2 > 0)
-					System.out.println("spO2 " + (int)spO2);
 
+				Delay.msDelay(pox.pollIntervalHint());
 			}
 
 		} catch (IOException ex) {
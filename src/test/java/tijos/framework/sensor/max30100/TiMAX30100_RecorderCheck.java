@@ -0,0 +1,172 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records a simulated session with FIFO overflows and a LED current change,
+ * then checks that the memory-mapped reader returns the same samples, gaps
+ * and configuration, and replays the recording:
+ *
+ * <pre>
+ * java TiMAX30100_RecorderCheck
+ * </pre>
+ */
+public class TiMAX30100_RecorderCheck {
+
+	private static final int SAMPLES = 60 * 100;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("max30100", ".m30r");
+		file.deleteOnExit();
+
+		int[] ir = new int[SAMPLES + TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] red = new int[ir.length];
+		int[] lost = new int[ir.length];
+		int count = record(file, ir, red, lost);
+
+		TiMAX30100_RecordingReader reader = new TiMAX30100_RecordingReader(file.getPath());
+		System.out.println(file.length() + " bytes, " + reader.getSampleCount() + " samples, "
+				+ reader.getOverflowCount() + " overflows, " + reader.getLostSampleCount() + " lost");
+
+		check("sample count", reader.getSampleCount() == count);
+		check("sampling rate", reader.getSamplingRate() == TiMAX30100.MAX30100_SAMPRATE_100HZ);
+		check("mode", reader.getMode() == TiMAX30100.MAX30100_MODE_SPO2_HR);
+		long lostTotal = 0;
+		for (int i = 0; i < count; i++) {
+			lostTotal += lost[i];
+		}
+		check("overflows", reader.getOverflowCount() > 0 && reader.getLostSampleCount() == lostTotal);
+		check("config change", reader.getConfigChangeCount() == 1
+				&& reader.getIRLedCurrent(0) == TiMAX30100.MAX30100_LED_CURR_50MA
+				&& reader.getIRLedCurrent(count - 1) == TiMAX30100.MAX30100_LED_CURR_40_2MA);
+
+		// sequential, then random access from unaligned positions
+		int[] rIR = new int[ir.length];
+		int[] rRed = new int[ir.length];
+		int[] rLost = new int[ir.length];
+		int n = 0;
+		int step;
+		while ((step = reader.read(n, rIR, rRed, rLost, n, 100)) > 0) {
+			n += step;
+		}
+		check("sequential read", n == count && same(ir, red, lost, rIR, rRed, rLost, 0, count));
+
+		long[] positions = new long[] { 0, 1, 15, 17, 999, 2345, count - 20 };
+		for (int i = 0; i < positions.length; i++) {
+			int p = (int) positions[i];
+			int m = reader.read(p, rIR, rRed, rLost, p, 37);
+			check("read at " + p, m == Math.min(37, count - p) && same(ir, red, lost, rIR, rRed, rLost, p, m));
+		}
+
+		long previous = -1;
+		boolean monotonic = true;
+		for (int i = 0; i < count; i += 50) {
+			long t = reader.getTimeOf(i);
+			monotonic &= t >= previous;
+			previous = t;
+		}
+		check("timestamps", monotonic && reader.getTimeOf(0) >= reader.getStartTime());
+
+		TiMAX30100_Replay replay = new TiMAX30100_Replay(
+				TiMAX30100.getSamplingRateHz(reader.getSamplingRate()));
+		reader.replay(replay, null);
+		TiMAX30100_PulseOximeter pox = replay.getPulseOximeter();
+		System.out.println("replay: HR " + (int) pox.getHeartRate() + " SpO2 " + pox.getSpO2());
+		check("replay", replay.getSamplesProcessed() == count && Math.abs(pox.getHeartRate() - 75) <= 5);
+		reader.close();
+
+		// cut in the middle of the last frame
+		File cut = File.createTempFile("max30100", ".m30r");
+		cut.deleteOnExit();
+		copy(file, cut, file.length() - 3);
+		reader = new TiMAX30100_RecordingReader(cut.getPath());
+		check("truncated", reader.isTruncated() && reader.getSampleCount() < count
+				&& reader.getSampleCount() > count - TiMAX30100.MAX30100_FIFO_DEPTH);
+		reader.close();
+
+		System.out.println(failures == 0 ? "PASS" : "FAIL " + failures);
+		if (failures != 0) {
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Drain the simulator for SAMPLES samples, keep what the driver returned
+	 */
+	private static int record(File file, int[] ir, int[] red, int[] lost) throws IOException {
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+
+		TiMAX30100 sensor = new TiMAX30100(sim);
+		sensor.initialize();
+		sensor.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR);
+		sensor.setLedsCurrent(TiMAX30100.MAX30100_LED_CURR_50MA, TiMAX30100.MAX30100_LED_CURR_27_1MA);
+		sensor.resetFifo();
+
+		// small buffer and interval to exercise the block writes
+		TiMAX30100_Recorder recorder = new TiMAX30100_Recorder(new BufferedOutputStream(new FileOutputStream(file)),
+				1024);
+		recorder.setTimestampInterval(250);
+		recorder.start(sensor);
+
+		int count = 0;
+		int drains = 0;
+		while (count < SAMPLES) {
+			drains++;
+			// overflow now and then
+			sim.advanceSamples(drains % 150 == 0 ? 3 * TiMAX30100.MAX30100_FIFO_DEPTH / 2 : 8);
+			if (count > SAMPLES / 2 && sensor.getIRLedCurrent() == TiMAX30100.MAX30100_LED_CURR_50MA) {
+				sensor.setLedsCurrent(TiMAX30100.MAX30100_LED_CURR_40_2MA, TiMAX30100.MAX30100_LED_CURR_27_1MA);
+			}
+			count += sensor.readFifoSamples(ir, red, lost, count, TiMAX30100.MAX30100_FIFO_DEPTH);
+		}
+
+		recorder.close();
+		check("recorder error", recorder.getError() == null && recorder.getSampleCount() == count);
+
+		return count;
+	}
+
+	private static boolean same(int[] ir, int[] red, int[] lost, int[] rIR, int[] rRed, int[] rLost, int off,
+			int len) {
+		for (int i = off; i < off + len; i++) {
+			if (ir[i] != rIR[i] || red[i] != rRed[i] || lost[i] != rLost[i]) {
+				System.out.println("sample " + i + ": " + ir[i] + "/" + red[i] + "/" + lost[i] + " read " + rIR[i]
+						+ "/" + rRed[i] + "/" + rLost[i]);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void copy(File from, File to, long length) throws IOException {
+		InputStream in = new FileInputStream(from);
+		OutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buf = new byte[4096];
+			int n;
+			while (length > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, length))) > 0) {
+				out.write(buf, 0, n);
+				length -= n;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			failures++;
+			System.out.println("FAIL " + name);
+		}
+	}
+}
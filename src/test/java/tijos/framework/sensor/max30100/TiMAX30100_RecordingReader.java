@@ -0,0 +1,439 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to a recording written by {@link TiMAX30100_Recorder}. <br>
+ * The file is memory-mapped and indexed once when opened: one entry per
+ * samples frame, overflow, timestamp and configuration change. Samples are
+ * then decoded straight from the mapping from any position. A frame cut by
+ * the end of the file, e.g. after a power loss, ends the recording.
+ * <p>
+ * Host side only: it relies on java.nio, which the device runtime does not
+ * provide.
+ *
+ * @author TiJOS
+ *
+ */
+public class TiMAX30100_RecordingReader {
+
+	private static final int INITIAL_INDEX_SIZE = 256;
+
+	// samples decoded per replay step
+	private static final int REPLAY_BLOCK_SIZE = 256;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+
+	// header
+	private int version;
+	private int headerConfig;
+	private long startTime;
+
+	// first sample and byte offset of the words of each samples frame
+	private long[] frameSample = new long[INITIAL_INDEX_SIZE];
+	private int[] frameOffset = new int[INITIAL_INDEX_SIZE];
+	private int frameNum = 0;
+
+	// samples lost just before a sample
+	private long[] gapSample = new long[INITIAL_INDEX_SIZE];
+	private int[] gapLost = new int[INITIAL_INDEX_SIZE];
+	private int gapNum = 0;
+	private long lostSampleCount = 0;
+
+	private long[] timestampSample = new long[INITIAL_INDEX_SIZE];
+	private long[] timestampTime = new long[INITIAL_INDEX_SIZE];
+	private int timestampNum = 0;
+
+	// configuration in effect from a sample
+	private long[] configSample = new long[INITIAL_INDEX_SIZE];
+	private int[] configs = new int[INITIAL_INDEX_SIZE];
+	private int configNum = 0;
+
+	private long sampleCount = 0;
+	private boolean truncated = false;
+
+	/**
+	 * Map and index a recording
+	 *
+	 * @param path
+	 * @throws IOException
+	 *             not a recording, or corrupted
+	 */
+	public TiMAX30100_RecordingReader(String path) throws IOException {
+		file = new RandomAccessFile(new File(path), "r");
+		try {
+			long length = file.length();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("recording too large: " + length);
+			}
+
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			readHeader();
+			index();
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Release the file, the mapping itself is released by the garbage
+	 * collector
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Time in ms at which the recording started
+	 *
+	 * @return
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Configuration when the recording started
+	 *
+	 * @return MAX30100_MODE_xxx
+	 */
+	public int getMode() {
+		return headerConfig >> 24;
+	}
+
+	/**
+	 * @return MAX30100_SAMPRATE_xxx
+	 */
+	public int getSamplingRate() {
+		return (headerConfig >> 20) & 0x0f;
+	}
+
+	/**
+	 * @return MAX30100_SPC_PW_xxx
+	 */
+	public int getLedsPulseWidth() {
+		return (headerConfig >> 16) & 0x0f;
+	}
+
+	public boolean isHighresModeEnabled() {
+		return (headerConfig & TiMAX30100_Recorder.FLAG_HIGH_RESOLUTION) != 0;
+	}
+
+	/**
+	 * IR LED current in effect at a sample
+	 *
+	 * @param sampleIndex
+	 * @return MAX30100_LED_CURR_xxx
+	 */
+	public int getIRLedCurrent(long sampleIndex) {
+		return (configAt(sampleIndex) >> 12) & 0x0f;
+	}
+
+	/**
+	 * Red LED current in effect at a sample
+	 *
+	 * @param sampleIndex
+	 * @return MAX30100_LED_CURR_xxx
+	 */
+	public int getRedLedCurrent(long sampleIndex) {
+		return (configAt(sampleIndex) >> 8) & 0x0f;
+	}
+
+	/**
+	 * Number of configuration changes during the recording
+	 *
+	 * @return
+	 */
+	public int getConfigChangeCount() {
+		return configNum - 1;
+	}
+
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Number of FIFO overflows recorded
+	 *
+	 * @return
+	 */
+	public int getOverflowCount() {
+		return gapNum;
+	}
+
+	public long getLostSampleCount() {
+		return lostSampleCount;
+	}
+
+	/**
+	 * The last frame was cut by the end of the file
+	 *
+	 * @return
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Decode samples from any position
+	 *
+	 * @param sampleIndex
+	 *            index of the first sample, from 0
+	 * @param ir
+	 *            destination of IR values
+	 * @param red
+	 *            destination of Red values
+	 * @param lost
+	 *            destination of the number of samples lost before each
+	 *            sample, may be null
+	 * @param off
+	 *            first index to write in the arrays
+	 * @param max
+	 *            maximum number of samples to copy
+	 * @return number of samples copied, 0 at the end of the recording
+	 */
+	public int read(long sampleIndex, int[] ir, int[] red, int[] lost, int off, int max) {
+		if (sampleIndex < 0) {
+			throw new IllegalArgumentException("sample index " + sampleIndex);
+		}
+
+		int count = (int) Math.min(max, sampleCount - sampleIndex);
+		if (count <= 0) {
+			return 0;
+		}
+
+		int frame = floor(frameSample, frameNum, sampleIndex);
+		int gap = floor(gapSample, gapNum, sampleIndex - 1) + 1;
+
+		long sample = sampleIndex;
+		for (int i = off; i < off + count; i++, sample++) {
+			while (frame + 1 < frameNum && frameSample[frame + 1] <= sample) {
+				frame++;
+			}
+
+			// the words are a copy of the FIFO DATA register
+			int pos = frameOffset[frame] + (int) (sample - frameSample[frame]) * 4;
+			ir[i] = map.getShort(pos) & 0xFFFF;
+			red[i] = map.getShort(pos + 2) & 0xFFFF;
+
+			if (lost != null) {
+				int n = 0;
+				while (gap < gapNum && gapSample[gap] == sample) {
+					n += gapLost[gap++];
+				}
+				lost[i] = n;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Replay the whole recording, the FIFO overflows as gaps. The replay must
+	 * have been created with the sample rate of the recording.
+	 *
+	 * @param replay
+	 * @param out
+	 */
+	public void replay(TiMAX30100_Replay replay, TiMAX30100_ReplayOutput out) {
+		int[] ir = new int[REPLAY_BLOCK_SIZE];
+		int[] red = new int[REPLAY_BLOCK_SIZE];
+		int[] lost = new int[REPLAY_BLOCK_SIZE];
+		long position = 0;
+
+		int count;
+		while ((count = read(position, ir, red, lost, 0, REPLAY_BLOCK_SIZE)) > 0) {
+			replay.run(ir, red, lost, 0, count, out);
+			position += count;
+		}
+	}
+
+	/**
+	 * Time in ms of the drain which delivered a sample, interpolated between
+	 * the timestamp frames and extrapolated at the nominal rate outside
+	 *
+	 * @param sampleIndex
+	 * @return
+	 */
+	public long getTimeOf(long sampleIndex) {
+		int rateHz = TiMAX30100.getSamplingRateHz(getSamplingRate());
+
+		if (timestampNum == 0) {
+			return startTime + sampleIndex * 1000 / rateHz;
+		}
+
+		int k = Math.max(0, floor(timestampSample, timestampNum, sampleIndex));
+		if (k + 1 < timestampNum && sampleIndex >= timestampSample[k]) {
+			long samples = timestampSample[k + 1] - timestampSample[k];
+			long ms = timestampTime[k + 1] - timestampTime[k];
+			return timestampTime[k] + (sampleIndex - timestampSample[k]) * ms / samples;
+		}
+
+		return timestampTime[k] + (sampleIndex - timestampSample[k]) * 1000 / rateHz;
+	}
+
+	private void readHeader() throws IOException {
+		if (map.limit() < TiMAX30100_Recorder.HEADER_SIZE || map.getInt(0) != TiMAX30100_Recorder.MAGIC) {
+			throw new IOException("not a MAX30100 recording");
+		}
+
+		version = map.get(4) & 0xFF;
+		if (version != TiMAX30100_Recorder.VERSION) {
+			throw new IOException("unsupported recording version " + version);
+		}
+
+		headerConfig = readConfig(5);
+		startTime = map.getLong(12);
+
+		addConfig(0, headerConfig);
+	}
+
+	private void index() throws IOException {
+		int pos = TiMAX30100_Recorder.HEADER_SIZE;
+		int limit = map.limit();
+
+		while (pos < limit) {
+			int type = map.get(pos) & 0xFF;
+			int size;
+
+			switch (type) {
+			case TiMAX30100_Recorder.FRAME_SAMPLES:
+				size = pos + 1 < limit ? 2 + (map.get(pos + 1) & 0xFF) * 4 : 2;
+				break;
+			case TiMAX30100_Recorder.FRAME_TIMESTAMP:
+				size = 17;
+				break;
+			case TiMAX30100_Recorder.FRAME_OVERFLOW:
+				size = 4;
+				break;
+			case TiMAX30100_Recorder.FRAME_CONFIG:
+				size = 7;
+				break;
+			default:
+				throw new IOException("invalid frame type " + type + " at " + pos);
+			}
+
+			if (pos + size > limit) {
+				truncated = true;
+				break;
+			}
+
+			switch (type) {
+			case TiMAX30100_Recorder.FRAME_SAMPLES:
+				addFrame(sampleCount, pos + 2);
+				sampleCount += map.get(pos + 1) & 0xFF;
+				break;
+			case TiMAX30100_Recorder.FRAME_TIMESTAMP:
+				addTimestamp(map.getLong(pos + 1), map.getLong(pos + 9));
+				break;
+			case TiMAX30100_Recorder.FRAME_OVERFLOW:
+				addGap(sampleCount + (map.get(pos + 3) & 0xFF), map.getShort(pos + 1) & 0xFFFF);
+				break;
+			default:
+				addConfig(sampleCount, readConfig(pos + 1));
+				break;
+			}
+
+			pos += size;
+		}
+	}
+
+	private int readConfig(int pos) {
+		return (map.get(pos) & 0xFF) << 24 | (map.get(pos + 1) & 0x0F) << 20 | (map.get(pos + 2) & 0x0F) << 16
+				| (map.get(pos + 3) & 0x0F) << 12 | (map.get(pos + 4) & 0x0F) << 8 | (map.get(pos + 5) & 0xFF);
+	}
+
+	private int configAt(long sampleIndex) {
+		return configs[Math.max(0, floor(configSample, configNum, sampleIndex))];
+	}
+
+	private void addFrame(long sample, int offset) {
+		if (frameNum == frameSample.length) {
+			frameSample = grow(frameSample);
+			frameOffset = grow(frameOffset);
+		}
+		frameSample[frameNum] = sample;
+		frameOffset[frameNum] = offset;
+		frameNum++;
+	}
+
+	private void addGap(long sample, int lost) {
+		if (gapNum == gapSample.length) {
+			gapSample = grow(gapSample);
+			gapLost = grow(gapLost);
+		}
+
+		// gaps announced by successive overflows may land in any order
+		int i = gapNum;
+		while (i > 0 && gapSample[i - 1] > sample) {
+			gapSample[i] = gapSample[i - 1];
+			gapLost[i] = gapLost[i - 1];
+			i--;
+		}
+		gapSample[i] = sample;
+		gapLost[i] = lost;
+		gapNum++;
+		lostSampleCount += lost;
+	}
+
+	private void addTimestamp(long sample, long time) {
+		if (timestampNum == timestampSample.length) {
+			timestampSample = grow(timestampSample);
+			timestampTime = grow(timestampTime);
+		}
+		timestampSample[timestampNum] = sample;
+		timestampTime[timestampNum] = time;
+		timestampNum++;
+	}
+
+	private void addConfig(long sample, int config) {
+		if (configNum == configSample.length) {
+			configSample = grow(configSample);
+			configs = grow(configs);
+		}
+		configSample[configNum] = sample;
+		configs[configNum] = config;
+		configNum++;
+	}
+
+	/*
+	 * Index of the last entry <= value, -1 if none
+	 */
+	private static int floor(long[] sorted, int num, long value) {
+		int low = 0;
+		int high = num - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	private static long[] grow(long[] a) {
+		long[] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -0,0 +1,66 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+import tijos.framework.sensor.max30100.TiMAX30100_Replay;
+import tijos.framework.sensor.max30100.TiMAX30100_ReplayOutput;
+
+public class TiMAX30100_ReplaySample {
+
+	public static void main(String[] args) {
+		/*
+		 * 参数: 录制文件(.csv, TiMAX30100_Recorder 录制的 .m30r 或二进制FIFO数据) [采样率Hz]
+		 */
+		if (args.length < 1) {
+			System.out.println("usage: TiMAX30100_ReplaySample <file.csv|file.m30r|file.bin> [sampleRate]");
+			return;
+		}
+
+		String file = args[0];
+		int sampleRate = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		TiMAX30100_RecordingReader recording = null;
+		if (file.endsWith(".m30r")) {
+			// the sample rate is in the recording header
+			try {
+				recording = new TiMAX30100_RecordingReader(file);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				return;
+			}
+			sampleRate = TiMAX30100.getSamplingRateHz(recording.getSamplingRate());
+		}
+
+		TiMAX30100_Replay replay = new TiMAX30100_Replay(sampleRate);
+
+		// Dump the time series as CSV
+		TiMAX30100_ReplayOutput out = new TiMAX30100_ReplayOutput() {
+			public void onResult(long timestamp, double heartRate, int spO2) {
+				System.out.println(timestamp + "," + (int) heartRate + "," + spO2);
+			}
+		};
+
+		try {
+			System.out.println("ms,hr,spo2");
+
+			long start = System.currentTimeMillis();
+			if (recording != null) {
+				recording.replay(replay, out);
+				recording.close();
+			} else if (file.endsWith(".csv")) {
+				replay.runCsv(new FileReader(file), out);
+			} else {
+				replay.runBinary(new BufferedInputStream(new FileInputStream(file)), out);
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+			System.err.println(replay.getSamplesProcessed() + " samples in " + elapsed + " ms");
+
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+import tijos.framework.sensor.max30100.TiMAX30100_PulseOximeter;
+import tijos.framework.sensor.max30100.TiMAX30100_Simulator;
+
+public class TiMAX30100_SimulatorSample {
+
+	public static void main(String[] args) {
+		/*
+		 * 使用模拟器代替真实传感器, 手动推进模拟时钟
+		 */
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+		sim.setHeartRate(75);
+		sim.setSpO2(97);
+
+		TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(sim);
+
+		try {
+			pox.initialize();
+
+			// 30 seconds of signal, drained every 100ms
+			for (int ms = 0; ms < 30000; ms += 100) {
+				sim.advance(100);
+				pox.update();
+
+				if (ms % 1000 == 0) {
+					System.out.println("t=" + ms / 1000 + "s heart " + (int) pox.getHeartRate() + " spO2 "
+							+ pox.getSpO2());
+				}
+			}
+
+			System.out.println("I2C transactions " + sim.getTransactionCount() + ", bytes "
+					+ sim.getBytesTransferred() + ", samples " + sim.getSampleCount());
+
+			// 采样率回归检查, 以100Hz的结果为基准
+			TiMAX30100_PulseOximeter reference = runSamplingRate(TiMAX30100.MAX30100_SAMPRATE_100HZ, 1);
+			boolean passed = checkSamplingRate(reference, reference);
+
+			int[] rates = new int[] { TiMAX30100.MAX30100_SAMPRATE_50HZ, TiMAX30100.MAX30100_SAMPRATE_200HZ,
+					TiMAX30100.MAX30100_SAMPRATE_400HZ };
+			for (int i = 0; i < rates.length; i++) {
+				passed &= checkSamplingRate(runSamplingRate(rates[i], 1), reference);
+			}
+
+			// 高采样率, 抽取后按100Hz处理
+			passed &= checkSamplingRate(runSamplingRate(TiMAX30100.MAX30100_SAMPRATE_400HZ, 4), reference);
+			passed &= checkSamplingRate(runSamplingRate(TiMAX30100.MAX30100_SAMPRATE_1000HZ, 10), reference);
+
+			// 间歇测量: 每分钟测量一次, 其余时间关闭传感器
+			passed &= checkMeasurementSessions();
+
+			// 运动干扰: 信号质量过低时不输出错误心率
+			passed &= checkMotionRejection();
+
+			System.out.println(passed ? "PASS" : "FAIL");
+			if (!passed) {
+				System.exit(1);
+			}
+
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/*
+	 * Three duty-cycled sessions one minute apart, each must end stable
+	 */
+	private static boolean checkMeasurementSessions() throws IOException {
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+		sim.setHeartRate(68);
+		sim.setSpO2(97);
+
+		TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(sim);
+		pox.initialize();
+
+		boolean ok = true;
+		for (int session = 0; session < 3; session++) {
+			pox.startMeasurement(30000);
+			while (pox.isMeasuring()) {
+				sim.advance(100);
+				pox.update();
+			}
+
+			TiMAX30100_Measurement result = pox.getMeasurement();
+			System.out.println("session " + session + ": " + result);
+			ok &= result.isStable() && Math.abs(result.getHeartRate() - 68) <= 3;
+
+			// shut down until the next session
+			sim.advance(60000);
+		}
+
+		return ok;
+	}
+
+	/*
+	 * 15 seconds of 90 bpm-like motion in a 75 bpm recording: the motion
+	 * must never be reported as the heart rate, and the readings must
+	 * recover once it stops
+	 */
+	private static boolean checkMotionRejection() throws IOException {
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+		sim.setHeartRate(75);
+		sim.setSpO2(97);
+
+		TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(sim);
+		pox.initialize();
+
+		boolean ok = true;
+		int worstQuality = 100;
+		for (int ms = 0; ms < 50000; ms += 100) {
+			if (ms == 20000) {
+				sim.setMotionArtifact(1500, 1.5);
+			} else if (ms == 35000) {
+				sim.setMotionArtifact(0, 1.5);
+			}
+
+			sim.advance(100);
+			pox.update();
+
+			if (ms >= 20000 && ms < 35000) {
+				worstQuality = Math.min(worstQuality, pox.getSignalQuality());
+				ok &= pox.getHeartRate() < 80;
+			}
+		}
+
+		int heartRate = (int) Math.round(pox.getHeartRate());
+		ok &= worstQuality < 50 && Math.abs(heartRate - 75) <= 3 && pox.getSpO2() >= 95
+				&& pox.getSignalQuality() >= 50;
+
+		System.out.println("motion: worst quality " + worstQuality + ", rejected windows " + pox.getRejectedWindows()
+				+ ", after heart " + heartRate + " spO2 " + pox.getSpO2() + (ok ? " ok" : " FAILED"));
+
+		return ok;
+	}
+
+	/*
+	 * 30s of 75 bpm and 97% at one sampling rate and decimation
+	 */
+	private static TiMAX30100_PulseOximeter runSamplingRate(int samplingRate, int decimation) throws IOException {
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+		sim.setHeartRate(75);
+		sim.setSpO2(97);
+
+		TiMAX30100_PulseOximeter pox = new TiMAX30100_PulseOximeter(sim);
+		pox.initialize();
+		pox.setSamplingRate(samplingRate);
+		pox.setDecimation(decimation);
+
+		// drained every 10ms, the FIFO holds 16ms at 1000Hz
+		for (int ms = 0; ms < 30000; ms += 10) {
+			sim.advance(10);
+			pox.update();
+		}
+
+		return pox;
+	}
+
+	/*
+	 * The readings must match the 100Hz ones: the heart rate, and the SpO2
+	 * ratio within 0.5%. The simulated SpO2 itself is not read back, the ratio
+	 * is what a rate dependent error would move.
+	 */
+	private static boolean checkSamplingRate(TiMAX30100_PulseOximeter pox, TiMAX30100_PulseOximeter reference) {
+		int heartRate = (int) Math.round(pox.getHeartRate());
+		int ratio = pox.spO2calculator.getRatio();
+		int referenceRatio = reference.spO2calculator.getRatio();
+
+		boolean ok = Math.abs(heartRate - 75) <= 3 && referenceRatio > 0
+				&& Math.abs(ratio - referenceRatio) <= referenceRatio / 200
+				&& Math.abs(pox.getSpO2() - reference.getSpO2()) <= 1 && pox.getSensor().getLostSampleCount() == 0;
+
+		System.out.println(TiMAX30100.getSamplingRateHz(pox.getSamplingRate()) + "Hz / " + pox.getDecimation()
+				+ ": heart " + heartRate + " spO2 " + pox.getSpO2() + " ratio " + Math.round(ratio * 1000.0 / 65536)
+				/ 1000.0 + " lost " + pox.getSensor().getLostSampleCount() + (ok ? " ok" : " FAILED"));
+
+		return ok;
+	}
+}
@@ -0,0 +1,107 @@
+package tijos.framework.sensor.max30100;
+
+import java.io.IOException;
+
+/**
+ * Checks that the integer SpO2 ratio path reads within 1% SpO2 of the double
+ * path, over a sweep of mean square pairs and over simulated recordings:
+ *
+ * <pre>
+ * java TiMAX30100_SpO2FixedPointCheck
+ * </pre>
+ */
+public class TiMAX30100_SpO2FixedPointCheck {
+
+	private static final int MAX_SPO2_DIFF = 1;
+
+	private static int failures = 0;
+	private static int checks = 0;
+	private static double maxRatioError = 0;
+
+	public static void main(String[] args) throws IOException {
+		TiMAX30100_SpO2Curve[] curves = new TiMAX30100_SpO2Curve[] { new TiMAX30100_SpO2LutCurve(),
+				new TiMAX30100_SpO2QuadraticCurve(110, -25, 0, 0.4, 1.4),
+				new TiMAX30100_SpO2QuadraticCurve(94.845, 30.354, -45.06, 0.2, 1.6) };
+
+		// mean squares from 10 to 1e7, ratios from 0.5 to 1.2
+		for (double irMeanSq = 10; irMeanSq < 1e7; irMeanSq *= 1.37) {
+			for (double r = 0.5; r < 1.2; r += 0.0037) {
+				double redMeanSq = Math.exp(Math.log(irMeanSq) * r);
+				compare(curves, redMeanSq, irMeanSq);
+			}
+		}
+		System.out.println("sweep: " + checks + " checks, " + failures + " failures, max ratio error "
+				+ Math.round(maxRatioError * 1e6) / 1e4 + "%");
+
+		int[][] recordings = new int[][] { { 60, 99 }, { 75, 97 }, { 90, 94 }, { 110, 90 }, { 50, 86 } };
+		for (int i = 0; i < recordings.length; i++) {
+			simulate(recordings[i][0], recordings[i][1]);
+		}
+
+		System.out.println(failures == 0 ? "PASS" : "FAIL " + failures + "/" + checks);
+		if (failures != 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void compare(TiMAX30100_SpO2Curve[] curves, double redMeanSq, double irMeanSq) {
+		int ratioDouble = TiMAX30100_SpO2Calculator.ratioDouble(redMeanSq, irMeanSq);
+		int ratioFixed = TiMAX30100_SpO2Calculator.ratioFixed(redMeanSq, irMeanSq);
+
+		if (ratioDouble > 0) {
+			maxRatioError = Math.max(maxRatioError, Math.abs(ratioFixed - ratioDouble) / (double) ratioDouble);
+		}
+
+		for (int i = 0; i < curves.length; i++) {
+			int expected = curves[i].getSpO2(ratioDouble);
+			int actual = curves[i].getSpO2(ratioFixed);
+			checks++;
+			if (Math.abs(expected - actual) > MAX_SPO2_DIFF) {
+				failures++;
+				System.out.println("curve " + i + " red " + redMeanSq + " ir " + irMeanSq + ": " + expected
+						+ " / " + actual);
+			}
+		}
+	}
+
+	/*
+	 * Same simulated recording through a double and a fixed point instance
+	 */
+	private static void simulate(int heartRate, int spO2) throws IOException {
+		TiMAX30100_Simulator sim = new TiMAX30100_Simulator();
+		sim.setRealTime(false);
+		sim.setHeartRate(heartRate);
+		sim.setSpO2(spO2);
+
+		TiMAX30100 sensor = new TiMAX30100(sim);
+		sensor.initialize();
+		sensor.setMode(TiMAX30100.MAX30100_MODE_SPO2_HR);
+		sensor.setLedsCurrent(TiMAX30100.MAX30100_LED_CURR_50MA, TiMAX30100.MAX30100_LED_CURR_27_1MA);
+		sensor.resetFifo();
+
+		TiMAX30100_PulseOximeter doublePath = new TiMAX30100_PulseOximeter(100);
+		TiMAX30100_PulseOximeter fixedPath = new TiMAX30100_PulseOximeter(100);
+		fixedPath.setSpO2FixedPoint(true);
+
+		int[] ir = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int[] red = new int[TiMAX30100.MAX30100_FIFO_DEPTH];
+		int worst = 0;
+
+		for (int ms = 0; ms < 30000; ms += 100) {
+			sim.advance(100);
+			int n = sensor.readFifoSamples(ir, red, 0, ir.length);
+			doublePath.process(ir, red, 0, n);
+			fixedPath.process(ir, red, 0, n);
+
+			int diff = Math.abs(doublePath.getSpO2() - fixedPath.getSpO2());
+			worst = Math.max(worst, diff);
+			checks++;
+			if (diff > MAX_SPO2_DIFF) {
+				failures++;
+			}
+		}
+
+		System.out.println("simulated " + heartRate + "bpm " + spO2 + "%: spO2 " + doublePath.getSpO2() + " / "
+				+ fixedPath.getSpO2() + ", worst difference " + worst);
+	}
+}